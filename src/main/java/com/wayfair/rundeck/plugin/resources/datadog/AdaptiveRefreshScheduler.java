@@ -0,0 +1,117 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CrawlStats;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AdaptiveRefreshScheduler decides how often the nodes are actually refreshed from Datadog.
+ *
+ * <p>Rundeck asks for nodes at its own fixed interval. Between refreshes that are due, the
+ * previous nodes are returned without crawling. After each refresh the interval is adjusted
+ * within the configured bounds:
+ *
+ * <ul>
+ *   <li>rate limited (429) responses double the interval
+ *   <li>a churn (hosts added and removed) of 1% of the fleet or more halves the interval
+ *   <li>no hosts added or removed lengthens the interval by half
+ * </ul>
+ *
+ * <p>The interval is also kept at least four times the crawl duration, so crawling never takes
+ * more than about a quarter of the time.
+ */
+class AdaptiveRefreshScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(AdaptiveRefreshScheduler.class);
+
+  // Share of the fleet added or removed in a refresh at which the interval is shortened
+  private static final double HIGH_CHURN = 0.01;
+
+  // Multiplier for the interval of a quiet fleet
+  private static final double QUIET_GROWTH = 1.5;
+
+  // Minimum ratio of the interval to the crawl duration
+  private static final int COST_FACTOR = 4;
+
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  private final Clock clock;
+  private long intervalMillis;
+  private long lastRefreshAt;
+  private boolean refreshed;
+
+  /**
+   * Constructs an AdaptiveRefreshScheduler.
+   *
+   * @param minIntervalMillis the shortest refresh interval
+   * @param maxIntervalMillis the longest refresh interval
+   * @param clock the clock for refresh times
+   */
+  AdaptiveRefreshScheduler(long minIntervalMillis, long maxIntervalMillis, Clock clock) {
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+    this.clock = clock;
+    this.intervalMillis = minIntervalMillis;
+  }
+
+  /**
+   * Check if the nodes should be refreshed from Datadog.
+   *
+   * @return true if there has been no refresh yet or the interval has passed; false otherwise
+   */
+  synchronized boolean isRefreshDue() {
+    return !refreshed || clock.millis() - lastRefreshAt >= intervalMillis;
+  }
+
+  /**
+   * Records a refresh and adjusts the interval to the observed churn and crawl cost.
+   *
+   * @param changes the node changes of the refresh
+   * @param nodeCount the count of nodes after the refresh
+   * @param durationMillis how long the refresh took
+   * @param stats the crawl cost of the refresh
+   */
+  synchronized void recordRefresh(
+      NodeChanges changes, int nodeCount, long durationMillis, CrawlStats stats) {
+    int churn = changes.getAdded().size() + changes.getRemoved().size();
+    double churnRatio = churn / (double) Math.max(1, nodeCount);
+
+    // The first refresh reports every node as added, so only its cost is taken into account
+    if (refreshed) {
+      if (stats.getRateLimited() > 0) {
+        intervalMillis *= 2;
+      } else if (churnRatio >= HIGH_CHURN) {
+        intervalMillis /= 2;
+      } else if (churn == 0) {
+        intervalMillis = (long) (intervalMillis * QUIET_GROWTH);
+      }
+    }
+
+    intervalMillis = Math.max(intervalMillis, durationMillis * COST_FACTOR);
+    intervalMillis = Math.min(Math.max(intervalMillis, minIntervalMillis), maxIntervalMillis);
+
+    refreshed = true;
+    lastRefreshAt = clock.millis();
+
+    logger.info(
+        "[Datadog Node Source] Next refresh in "
+            + TimeUnit.MILLISECONDS.toSeconds(intervalMillis)
+            + "s (churn: "
+            + churn
+            + ", duration: "
+            + durationMillis
+            + "ms, "
+            + stats
+            + ")");
+  }
+
+  /**
+   * Get the current refresh interval.
+   *
+   * @return the interval in milliseconds
+   */
+  synchronized long getIntervalMillis() {
+    return intervalMillis;
+  }
+}
@@ -0,0 +1,309 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ClusterCrawlCoordinator lets Rundeck cluster members share one crawl of Datadog.
+ *
+ * <p>Members point at a shared directory. Each source keeps its snapshot and lease in a
+ * subdirectory named after a hash of its configuration, so sources configured differently never
+ * serve each other's nodes. A member that finds a fresh snapshot there uses it.
+ * Otherwise it tries to take the crawl lease, and the member holding the lease crawls Datadog and
+ * writes a new snapshot for the others. The lease is a file holding the owner and an expiry time,
+ * updated under a file lock, so a member that dies mid-crawl only blocks the others until the
+ * lease expires. Members that don't get the lease use the last snapshot, however old. If there is
+ * none yet they wait for the lease holder's snapshot, for at most the lease duration, and only then
+ * crawl themselves.
+ *
+ * <p>Lease expiry and snapshot age are times written by one member and compared against another
+ * member's clock, so the members' clocks must be kept synchronized, for example with NTP. A skew
+ * makes snapshots look younger or older by that much and leases expire that much early or late.
+ */
+class ClusterCrawlCoordinator {
+  private static final Logger logger = LoggerFactory.getLogger(ClusterCrawlCoordinator.class);
+
+  static final String SNAPSHOT_FILE = "nodes.snapshot";
+  static final String LEASE_FILE = "crawl.lease";
+  static final String LOCK_FILE = "crawl.lock";
+
+  // File locks are held per JVM, so sources in the same JVM take turns on the lock file
+  private static final Object LOCK_FILE_MONITOR = new Object();
+
+  static final long SNAPSHOT_POLL_MILLIS = 500;
+
+  // Hex characters of the configuration hash used as the source's subdirectory name
+  private static final int SOURCE_KEY_LENGTH = 16;
+
+  /** Crawler retrieves the nodes from Datadog. */
+  interface Crawler {
+
+    /**
+     * Retrieves the nodes from Datadog.
+     *
+     * @return a set of Rundeck nodes
+     * @throws ResourceModelSourceException for any issues with retrieving nodes
+     */
+    INodeSet crawl() throws ResourceModelSourceException;
+  }
+
+  private final Path directory;
+  private final long leaseMillis;
+  private final long maxSnapshotAgeMillis;
+  private final Clock clock;
+  private final String memberId = UUID.randomUUID().toString();
+  private NodeSnapshot lastSnapshot;
+
+  /**
+   * Constructs a ClusterCrawlCoordinator.
+   *
+   * @param directory the directory shared by the cluster members
+   * @param sourceKey the key of the source's configuration, from {@link #sourceKey(List)}
+   * @param leaseMillis how long a crawl lease lasts; should be longer than a crawl
+   * @param maxSnapshotAgeMillis how old a snapshot can be and still be used instead of crawling
+   * @param clock the clock for lease expiry and snapshot age; must be synchronized across members
+   * @throws IOException if the source's subdirectory can't be created
+   */
+  ClusterCrawlCoordinator(
+      Path directory, String sourceKey, long leaseMillis, long maxSnapshotAgeMillis, Clock clock)
+      throws IOException {
+    this.directory = Files.createDirectories(directory.resolve(sourceKey));
+    this.leaseMillis = leaseMillis;
+    this.maxSnapshotAgeMillis = maxSnapshotAgeMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Computes a stable key for a source from the settings that decide its nodes.
+   *
+   * @param settings the source's settings, in a fixed order
+   * @return a hex key to name the source's subdirectory with
+   */
+  static String sourceKey(List<String> settings) {
+    StringBuilder canonical = new StringBuilder();
+
+    // Length-prefixed so settings containing the separator can't collide
+    for (String setting : settings) {
+      String value = setting == null ? "" : setting;
+      canonical.append(value.length()).append(':').append(value).append('\n');
+    }
+
+    return Hashing.sha256()
+        .hashString(canonical, StandardCharsets.UTF_8)
+        .toString()
+        .substring(0, SOURCE_KEY_LENGTH);
+  }
+
+  /**
+   * Gets the nodes from a fresh snapshot or by crawling under the cluster lease.
+   *
+   * @param crawler retrieves the nodes from Datadog
+   * @return a set of Rundeck nodes
+   * @throws ResourceModelSourceException for any issues with retrieving nodes
+   */
+  synchronized INodeSet getNodes(Crawler crawler) throws ResourceModelSourceException {
+    NodeSnapshot snapshot = loadSnapshot();
+
+    // The snapshot was created on the writer's clock
+    if (snapshot != null && clock.millis() - snapshot.getCreatedAt() <= maxSnapshotAgeMillis) {
+      logger.info(
+          "[Datadog Node Source] Using the cluster snapshot from " + snapshot.getCreatedAt());
+      return snapshot.getNodes();
+    }
+
+    boolean leased = tryAcquireLease();
+
+    if (!leased && snapshot != null) {
+      logger.info(
+          "[Datadog Node Source] Another member is crawling; using the cluster snapshot from "
+              + snapshot.getCreatedAt());
+      return snapshot.getNodes();
+    }
+
+    if (!leased) {
+      logger.info(
+          "[Datadog Node Source] Another member is crawling and there is no snapshot; waiting");
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+
+      // Take the lease if the holder releases it without writing a snapshot
+      while (!leased && System.nanoTime() < deadline) {
+        sleep(SNAPSHOT_POLL_MILLIS);
+        snapshot = loadSnapshot();
+
+        if (snapshot != null) {
+          logger.info(
+              "[Datadog Node Source] Using the cluster snapshot from " + snapshot.getCreatedAt());
+          return snapshot.getNodes();
+        }
+
+        leased = tryAcquireLease();
+      }
+
+      if (!leased) {
+        logger.warn(
+            "[Datadog Node Source] No cluster snapshot within the lease duration; crawling");
+        return crawler.crawl();
+      }
+    }
+
+    try {
+      INodeSet nodes = crawler.crawl();
+
+      try {
+        NodeSnapshot.write(directory.resolve(SNAPSHOT_FILE), nodes, clock.millis());
+      } catch (IOException ex) {
+        logger.error("Exception while writing the cluster snapshot: " + ex.toString());
+      }
+
+      return nodes;
+    } finally {
+      releaseLease();
+    }
+  }
+
+  /**
+   * Sleeps between polls for the lease holder's snapshot.
+   *
+   * @param millis how long to sleep
+   * @throws ResourceModelSourceException if interrupted while sleeping
+   */
+  private static void sleep(long millis) throws ResourceModelSourceException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ResourceModelSourceException(
+          "Interrupted while waiting for the cluster snapshot", ex);
+    }
+  }
+
+  /**
+   * Loads the snapshot from the shared directory, reusing the last one read if it's unchanged.
+   *
+   * @return the snapshot; null if there is none
+   */
+  private NodeSnapshot loadSnapshot() {
+    Path path = directory.resolve(SNAPSHOT_FILE);
+
+    try {
+      long createdAt = NodeSnapshot.readCreatedAt(path);
+
+      if (createdAt < 0) {
+        return null;
+      }
+
+      if (lastSnapshot == null || lastSnapshot.getCreatedAt() != createdAt) {
+        lastSnapshot = NodeSnapshot.read(path);
+      }
+    } catch (IOException ex) {
+      logger.error("Exception while reading the cluster snapshot: " + ex.toString());
+    }
+
+    return lastSnapshot;
+  }
+
+  /**
+   * Takes the crawl lease if it's free, expired or already held by this member.
+   *
+   * @return true if this member holds the lease; false otherwise
+   */
+  boolean tryAcquireLease() {
+    synchronized (LOCK_FILE_MONITOR) {
+      return tryAcquireLeaseLocked();
+    }
+  }
+
+  private boolean tryAcquireLeaseLocked() {
+    try (FileChannel channel =
+            FileChannel.open(
+                directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock()) {
+      if (lock == null) {
+        return false;
+      }
+
+      long now = clock.millis();
+      List<String> lease = readLease();
+
+      // A malformed lease is treated as expired
+      if (lease.size() == 2 && !memberId.equals(lease.get(0)) && leaseExpiry(lease) > now) {
+        return false;
+      }
+
+      writeLease(memberId + "\n" + (now + leaseMillis));
+      return true;
+    } catch (IOException ex) {
+      logger.error("Exception while acquiring the crawl lease: " + ex.toString());
+      return false;
+    }
+  }
+
+  /** Gives up the crawl lease if this member holds it. */
+  void releaseLease() {
+    synchronized (LOCK_FILE_MONITOR) {
+      releaseLeaseLocked();
+    }
+  }
+
+  private void releaseLeaseLocked() {
+    try (FileChannel channel =
+            FileChannel.open(
+                directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock()) {
+      List<String> lease = readLease();
+
+      if (!lease.isEmpty() && memberId.equals(lease.get(0))) {
+        Files.deleteIfExists(directory.resolve(LEASE_FILE));
+      }
+    } catch (IOException ex) {
+      // The lease expires on its own
+      logger.warn("Exception while releasing the crawl lease: " + ex.toString());
+    }
+  }
+
+  private List<String> readLease() throws IOException {
+    Path path = directory.resolve(LEASE_FILE);
+    return Files.isRegularFile(path)
+        ? Files.readAllLines(path, StandardCharsets.UTF_8)
+        : Collections.emptyList();
+  }
+
+  private static long leaseExpiry(List<String> lease) {
+    try {
+      return Long.parseLong(lease.get(1).trim());
+    } catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  private void writeLease(String lease) throws IOException {
+    Path temp = Files.createTempFile(directory, LEASE_FILE, ".tmp");
+
+    try {
+      Files.write(temp, lease.getBytes(StandardCharsets.UTF_8));
+      Files.move(
+          temp,
+          directory.resolve(LEASE_FILE),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
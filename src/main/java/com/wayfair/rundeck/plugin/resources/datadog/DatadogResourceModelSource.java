@@ -1,15 +1,30 @@
 package com.wayfair.rundeck.plugin.resources.datadog;
 
 import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.dtolabs.rundeck.core.resources.ResourceModelSource;
 import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CrawlStats;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogOrg;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,9 +34,19 @@ import org.slf4j.LoggerFactory;
 public class DatadogResourceModelSource implements ResourceModelSource {
   private static final Logger logger = LoggerFactory.getLogger(DatadogResourceModelSource.class);
   private final HostToNodeMapper mapper;
+  private final NodeChangeFeed changeFeed = new NodeChangeFeed();
+  private final ClusterCrawlCoordinator coordinator;
+  private final AdaptiveRefreshScheduler scheduler;
+  private volatile INodeSet lastNodes;
 
-  /** Constructor */
-  DatadogResourceModelSource(final Properties configuration) {
+  /**
+   * Constructor
+   *
+   * @param configuration the source configuration
+   * @throws ConfigurationException if the tag attribute projection rules or node change listeners
+   *     are invalid
+   */
+  DatadogResourceModelSource(final Properties configuration) throws ConfigurationException {
     String filterString =
         configuration.getProperty(DatadogResourceModelSourceFactory.FILTER_STRING);
 
@@ -29,6 +54,39 @@ public class DatadogResourceModelSource implements ResourceModelSource {
 
     String appKey = configuration.getProperty(DatadogResourceModelSourceFactory.DATADOG_APP_KEY);
     String apiKey = configuration.getProperty(DatadogResourceModelSourceFactory.DATADOG_API_KEY);
+    String site = configuration.getProperty(DatadogResourceModelSourceFactory.DATADOG_SITE);
+
+    List<DatadogOrg> orgs = new ArrayList<>();
+    orgs.add(new DatadogOrg(null, site, apiKey, appKey, filterString));
+
+    String orgsFilePath =
+        configuration.getProperty(DatadogResourceModelSourceFactory.DATADOG_ORGS_FILE_PATH);
+
+    if (orgsFilePath != null) {
+      try (Scanner scanner = new Scanner(new FileReader(orgsFilePath))) {
+        int lineNumber = 0;
+        while (scanner.hasNextLine()) {
+          String entry = scanner.nextLine().trim();
+          lineNumber++;
+          if ("".equals(entry) || entry.startsWith("#")) {
+            continue;
+          }
+          // Skip a malformed entry rather than every organization listed after it
+          try {
+            orgs.add(DatadogOrg.parse(entry));
+          } catch (IllegalArgumentException ex) {
+            logger.error("Skipping line " + lineNumber + " of the orgs file: " + ex.getMessage());
+          }
+        }
+      } catch (FileNotFoundException ex) {
+        logger.error("Exception while attempting to read the orgs file: " + ex.toString());
+      }
+    }
+
+    int maxConcurrentRequests =
+        parsePositiveInt(
+            configuration.getProperty(DatadogResourceModelSourceFactory.MAX_CONCURRENT_REQUESTS),
+            HostToNodeMapper.UNBOUNDED_REQUESTS);
 
     Set<String> inputTagSet = new HashSet<>();
 
@@ -53,8 +111,82 @@ public class DatadogResourceModelSource implements ResourceModelSource {
       inputTagSet.addAll(Arrays.asList(inputTagString.replaceAll("\\s", "").split(",")));
     }
 
+    List<String> partitionTags = new ArrayList<>();
+
+    String partitionTagKey =
+        configuration.getProperty(DatadogResourceModelSourceFactory.PARTITION_TAG_KEY);
+    String partitionTagValues =
+        configuration.getProperty(DatadogResourceModelSourceFactory.PARTITION_TAG_VALUES);
+
+    if (partitionTagKey != null
+        && !"".equals(partitionTagKey.trim())
+        && partitionTagValues != null
+        && !"".equals(partitionTagValues.trim())) {
+      for (String value : partitionTagValues.replaceAll("\\s", "").split(",")) {
+        if (!"".equals(value)) {
+          partitionTags.add(partitionTagKey.trim() + ":" + value);
+        }
+      }
+    }
+
+    HostToNodeMapper.HostStore hostStore;
+
+    switch (configuration.getProperty(
+        DatadogResourceModelSourceFactory.HOST_STORE,
+        DatadogResourceModelSourceFactory.HOST_STORE_OBJECT)) {
+      case DatadogResourceModelSourceFactory.HOST_STORE_COMPACT:
+        hostStore = HostToNodeMapper.HostStore.COMPACT;
+        break;
+      case DatadogResourceModelSourceFactory.HOST_STORE_COMPACT_OFF_HEAP:
+        hostStore = HostToNodeMapper.HostStore.COMPACT_OFF_HEAP;
+        break;
+      default:
+        hostStore = HostToNodeMapper.HostStore.OBJECT;
+    }
+
+    boolean dropDefaultAttributes =
+        Boolean.parseBoolean(
+            configuration.getProperty(DatadogResourceModelSourceFactory.DROP_DEFAULT_ATTRIBUTES));
+
+    Map<String, String> attributeByTagKey;
+
+    // The UI validator can't check the rules against drop_default_attributes, so fail here rather
+    // than serving nodes without any of the projected attributes
+    try {
+      attributeByTagKey =
+          TagProjection.parseRules(
+              configuration.getProperty(DatadogResourceModelSourceFactory.ATTRIBUTE_PROJECTION),
+              dropDefaultAttributes);
+    } catch (IllegalArgumentException ex) {
+      throw new ConfigurationException("Invalid tag attributes: " + ex.getMessage(), ex);
+    }
+
+    TagProjection projection =
+        new TagProjection(inputTagSet, attributeByTagKey, dropDefaultAttributes);
+
+    String listenerNames =
+        configuration.getProperty(DatadogResourceModelSourceFactory.NODE_CHANGE_LISTENERS);
+
+    if (listenerNames != null && !"".equals(listenerNames.trim())) {
+      try {
+        changeFeed.registerListeners(
+            Arrays.asList(listenerNames.replaceAll("\\s", "").split(",")),
+            DatadogResourceModelSource.class.getClassLoader());
+      } catch (IllegalArgumentException ex) {
+        throw new ConfigurationException("Invalid node change listeners: " + ex.getMessage(), ex);
+      }
+    }
+
+    coordinator =
+        createCoordinator(
+            configuration,
+            clusterSettings(
+                orgs, inputTagSet, attributeByTagKey, dropDefaultAttributes, partitionTags));
+    scheduler = createScheduler(configuration);
+
     logger.debug("Creating a HostToNodeMapper");
-    mapper = new HostToNodeMapper(filterString, appKey, apiKey, inputTagSet);
+    mapper =
+        new HostToNodeMapper(orgs, partitionTags, maxConcurrentRequests, hostStore, projection);
   }
 
   /**
@@ -68,14 +200,180 @@ public class DatadogResourceModelSource implements ResourceModelSource {
    */
   @Override
   public INodeSet getNodes() throws ResourceModelSourceException {
+    INodeSet previousNodes = lastNodes;
+
+    if (scheduler != null && previousNodes != null && !scheduler.isRefreshDue()) {
+      logger.debug("[Datadog Node Source] Refresh not due; returning the previous nodes");
+      return previousNodes;
+    }
+
+    CrawlStats stats = new CrawlStats();
+    long start = System.nanoTime();
+
     INodeSet nodes;
     try {
-      nodes = mapper.performQuery();
+      nodes =
+          coordinator != null
+              ? coordinator.getNodes(() -> mapper.performQuery(stats))
+              : mapper.performQuery(stats);
     } catch (ResourceModelSourceException e) {
       throw new ResourceModelSourceException(
           "Exception while retrieving Datadog hosts: " + e.toString(), e);
     }
 
+    NodeChanges changes = changeFeed.update(nodes);
+
+    if (scheduler != null) {
+      scheduler.recordRefresh(
+          changes,
+          nodes.getNodes().size(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+          stats);
+      lastNodes = nodes;
+    }
+
     return nodes;
   }
-}
\ No newline at end of file
+
+  /**
+   * Get the feed of node changes between refreshes.
+   *
+   * @return the node change feed
+   */
+  public NodeChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  /**
+   * Lists the settings that decide the nodes of this source, to key its cluster snapshot by.
+   *
+   * <p>The keys are included so sources on different accounts with the same filter are kept
+   * apart; only a hash of the settings is written to the cluster directory.
+   *
+   * @param orgs the Datadog organizations
+   * @param inputTagSet the tag keys added to the nodes
+   * @param attributeByTagKey the tag attribute projection rules
+   * @param dropDefaultAttributes true if the default attributes are dropped
+   * @param partitionTags the `key:value` tags the query is partitioned by
+   * @return the settings in a fixed order
+   */
+  private static List<String> clusterSettings(
+      List<DatadogOrg> orgs,
+      Set<String> inputTagSet,
+      Map<String, String> attributeByTagKey,
+      boolean dropDefaultAttributes,
+      List<String> partitionTags) {
+    List<String> settings = new ArrayList<>();
+
+    for (DatadogOrg org : orgs) {
+      settings.addAll(
+          Arrays.asList(
+              org.getName(), org.getSite(), org.getApiKey(), org.getAppKey(), org.getFilter()));
+    }
+
+    settings.add(new TreeSet<>(inputTagSet).toString());
+    settings.add(new TreeMap<>(attributeByTagKey).toString());
+    settings.add(Boolean.toString(dropDefaultAttributes));
+    settings.add(partitionTags.toString());
+
+    return settings;
+  }
+
+  /**
+   * Creates the coordinator for sharing crawls across a Rundeck cluster, if configured.
+   *
+   * @param configuration Properties passed in by Rundeck application
+   * @param settings the settings that decide the nodes of this source
+   * @return a ClusterCrawlCoordinator; null if there is no cluster directory
+   */
+  private static ClusterCrawlCoordinator createCoordinator(
+      Properties configuration, List<String> settings) {
+    String directory =
+        configuration.getProperty(DatadogResourceModelSourceFactory.CLUSTER_DIRECTORY);
+
+    if (directory == null || "".equals(directory.trim())) {
+      return null;
+    }
+
+    try {
+      Path path = Files.createDirectories(Paths.get(directory.trim()));
+
+      int maxSnapshotAge =
+          parsePositiveInt(
+              configuration.getProperty(
+                  DatadogResourceModelSourceFactory.CLUSTER_SNAPSHOT_MAX_AGE),
+              Integer.parseInt(
+                  DatadogResourceModelSourceFactory.DEFAULT_CLUSTER_SNAPSHOT_MAX_AGE));
+      int leaseDuration =
+          parsePositiveInt(
+              configuration.getProperty(DatadogResourceModelSourceFactory.CLUSTER_LEASE_DURATION),
+              Integer.parseInt(DatadogResourceModelSourceFactory.DEFAULT_CLUSTER_LEASE_DURATION));
+
+      return new ClusterCrawlCoordinator(
+          path,
+          ClusterCrawlCoordinator.sourceKey(settings),
+          TimeUnit.SECONDS.toMillis(leaseDuration),
+          TimeUnit.SECONDS.toMillis(maxSnapshotAge),
+          Clock.systemUTC());
+    } catch (IOException | InvalidPathException ex) {
+      logger.error("Exception while creating the cluster directory: " + ex.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Creates the adaptive refresh scheduler, if enabled.
+   *
+   * @param configuration Properties passed in by Rundeck application
+   * @return an AdaptiveRefreshScheduler; null if adaptive refresh is disabled
+   */
+  private static AdaptiveRefreshScheduler createScheduler(Properties configuration) {
+    if (!Boolean.parseBoolean(
+        configuration.getProperty(DatadogResourceModelSourceFactory.ADAPTIVE_REFRESH))) {
+      return null;
+    }
+
+    int minInterval =
+        parsePositiveInt(
+            configuration.getProperty(
+                DatadogResourceModelSourceFactory.ADAPTIVE_REFRESH_MIN_INTERVAL),
+            Integer.parseInt(
+                DatadogResourceModelSourceFactory.DEFAULT_ADAPTIVE_REFRESH_MIN_INTERVAL));
+    int maxInterval =
+        parsePositiveInt(
+            configuration.getProperty(
+                DatadogResourceModelSourceFactory.ADAPTIVE_REFRESH_MAX_INTERVAL),
+            Integer.parseInt(
+                DatadogResourceModelSourceFactory.DEFAULT_ADAPTIVE_REFRESH_MAX_INTERVAL));
+
+    return new AdaptiveRefreshScheduler(
+        TimeUnit.SECONDS.toMillis(minInterval),
+        TimeUnit.SECONDS.toMillis(maxInterval),
+        Clock.systemUTC());
+  }
+
+  /**
+   * Parses a positive integer property, falling back to a default for missing or invalid values.
+   *
+   * @param value the property value; may be null
+   * @param defaultValue the value to use if the property is missing or invalid
+   * @return the parsed value
+   */
+  static int parsePositiveInt(String value, int defaultValue) {
+    if (value == null || "".equals(value.trim())) {
+      return defaultValue;
+    }
+
+    try {
+      int parsed = Integer.parseInt(value.trim());
+      if (parsed > 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException ex) {
+      // Fall through to the default
+    }
+
+    logger.warn("Invalid value " + value + "; using default " + defaultValue);
+    return defaultValue;
+  }
+}
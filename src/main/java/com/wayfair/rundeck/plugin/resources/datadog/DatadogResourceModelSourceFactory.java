@@ -1,6 +1,7 @@
 package com.wayfair.rundeck.plugin.resources.datadog;
 
 import com.dtolabs.rundeck.core.plugins.Plugin;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.dtolabs.rundeck.core.plugins.configuration.Describable;
 import com.dtolabs.rundeck.core.plugins.configuration.Description;
 import com.dtolabs.rundeck.core.plugins.configuration.PropertyUtil;
@@ -9,7 +10,9 @@ import com.dtolabs.rundeck.core.plugins.configuration.ValidationException;
 import com.dtolabs.rundeck.core.resources.ResourceModelSource;
 import com.dtolabs.rundeck.core.resources.ResourceModelSourceFactory;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogOrg;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Properties;
 import org.slf4j.Logger;
@@ -26,6 +29,28 @@ public class DatadogResourceModelSourceFactory implements ResourceModelSourceFac
   static final String DATADOG_API_KEY = "datadog_api_key";
   static final String DATADOG_TAG_FILE_PATH = "datadog_tag_file_path";
   static final String DATADOG_TAG_STRING = "datadog_tag_string";
+  static final String DATADOG_SITE = "datadog_site";
+  static final String DATADOG_ORGS_FILE_PATH = "datadog_orgs_file_path";
+  static final String MAX_CONCURRENT_REQUESTS = "max_concurrent_requests";
+  static final String PARTITION_TAG_KEY = "datadog_partition_tag_key";
+  static final String PARTITION_TAG_VALUES = "datadog_partition_tag_values";
+  static final String ATTRIBUTE_PROJECTION = "datadog_attribute_projection";
+  static final String DROP_DEFAULT_ATTRIBUTES = "drop_default_attributes";
+  static final String CLUSTER_DIRECTORY = "cluster_directory";
+  static final String CLUSTER_SNAPSHOT_MAX_AGE = "cluster_snapshot_max_age";
+  static final String DEFAULT_CLUSTER_SNAPSHOT_MAX_AGE = "60";
+  static final String CLUSTER_LEASE_DURATION = "cluster_lease_duration";
+  static final String DEFAULT_CLUSTER_LEASE_DURATION = "300";
+  static final String ADAPTIVE_REFRESH = "adaptive_refresh";
+  static final String ADAPTIVE_REFRESH_MIN_INTERVAL = "adaptive_refresh_min_interval";
+  static final String DEFAULT_ADAPTIVE_REFRESH_MIN_INTERVAL = "60";
+  static final String ADAPTIVE_REFRESH_MAX_INTERVAL = "adaptive_refresh_max_interval";
+  static final String DEFAULT_ADAPTIVE_REFRESH_MAX_INTERVAL = "1800";
+  static final String NODE_CHANGE_LISTENERS = "node_change_listeners";
+  static final String HOST_STORE = "host_store";
+  static final String HOST_STORE_OBJECT = "object";
+  static final String HOST_STORE_COMPACT = "compact";
+  static final String HOST_STORE_COMPACT_OFF_HEAP = "compact-off-heap";
 
   private static final Description description =
       DescriptionBuilder.builder()
@@ -56,6 +81,13 @@ public class DatadogResourceModelSourceFactory implements ResourceModelSourceFac
                   Collections.singletonMap(
                       StringRenderingConstants.DISPLAY_TYPE_KEY,
                       StringRenderingConstants.DisplayType.PASSWORD)))
+          .property(
+              PropertyUtil.string(
+                  DATADOG_SITE,
+                  "Datadog Site",
+                  "The Datadog site the keys belong to. Example: `datadoghq.com`, `datadoghq.eu`",
+                  false,
+                  DatadogOrg.DEFAULT_SITE))
           .property(
               PropertyUtil.string(
                   FILTER_STRING,
@@ -88,6 +120,144 @@ public class DatadogResourceModelSourceFactory implements ResourceModelSourceFac
                       + " be used on their own.",
                   false,
                   null))
+          .property(
+              PropertyUtil.string(
+                  ATTRIBUTE_PROJECTION,
+                  "Datadog Tag Attributes",
+                  "A comma separated list of Datadog tag keys to map to node attributes, as"
+                      + " `tagKey=attribute` or `tagKey` to use the tag key as the attribute name."
+                      + " Example: `role,availability-zone=zone`. Filtering on attributes is"
+                      + " cheaper than filtering on tags. `isMuted` and `sources` can only be set"
+                      + " when default attributes are dropped.",
+                  false,
+                  null,
+                  rules -> {
+                    // Whether default attributes are dropped is checked when the source is created
+                    try {
+                      TagProjection.parseRules(rules, true);
+                    } catch (IllegalArgumentException ex) {
+                      throw new ValidationException(ex.getMessage());
+                    }
+                    return true;
+                  }))
+          .property(
+              PropertyUtil.bool(
+                  DROP_DEFAULT_ATTRIBUTES,
+                  "Drop Default Attributes",
+                  "Leave out the `isMuted` and `sources` attributes to keep nodes small.",
+                  false,
+                  "false"))
+          .property(
+              PropertyUtil.string(
+                  DATADOG_ORGS_FILE_PATH,
+                  "Additional Datadog Orgs File Path",
+                  "Path to a file with additional Datadog organizations to retrieve hosts from,"
+                      + " one `name|site|apiKey|appKey|filter` entry per line. Nodes from the"
+                      + " organization configured above win when nodenames conflict, followed by"
+                      + " the order of the file.",
+                  false,
+                  null,
+                  file -> {
+                    if (!new File(file).isFile()) {
+                      throw new ValidationException("File does not exist: " + file);
+                    }
+                    return true;
+                  }))
+          .property(
+              PropertyUtil.integer(
+                  MAX_CONCURRENT_REQUESTS,
+                  "Max Concurrent Requests",
+                  "The max amount of requests to Datadog in flight at once across all"
+                      + " organizations. If empty, every page is requested at once.",
+                  false,
+                  null))
+          .property(
+              PropertyUtil.string(
+                  PARTITION_TAG_KEY,
+                  "Partition Tag Key",
+                  "A Datadog tag key to split the host query by, such as `availability-zone`"
+                      + " or `datacenter`. Each partition is crawled in parallel. Requires"
+                      + " partition tag values.",
+                  false,
+                  null))
+          .property(
+              PropertyUtil.string(
+                  PARTITION_TAG_VALUES,
+                  "Partition Tag Values",
+                  "A comma separated list of values of the partition tag key, one partition"
+                      + " per value. If the partitions miss any hosts, the hosts are retrieved"
+                      + " without partitions instead.",
+                  false,
+                  null))
+          .property(
+              PropertyUtil.select(
+                  HOST_STORE,
+                  "Host Store",
+                  "How hosts are held between fetching and mapping. `compact` dictionary-encodes"
+                      + " hosts to cut the heap used by very large fleets, and `compact-off-heap`"
+                      + " also moves its columns off-heap. The dictionary strings stay on the"
+                      + " heap.",
+                  false,
+                  HOST_STORE_OBJECT,
+                  Arrays.asList(
+                      HOST_STORE_OBJECT, HOST_STORE_COMPACT, HOST_STORE_COMPACT_OFF_HEAP)))
+          .property(
+              PropertyUtil.string(
+                  CLUSTER_DIRECTORY,
+                  "Cluster Directory",
+                  "A directory shared by the Rundeck cluster members. If set, only the member"
+                      + " holding the crawl lease retrieves hosts from Datadog and the others use"
+                      + " the snapshot it writes.",
+                  false,
+                  null))
+          .property(
+              PropertyUtil.integer(
+                  CLUSTER_SNAPSHOT_MAX_AGE,
+                  "Cluster Snapshot Max Age",
+                  "How old in seconds the cluster snapshot can be and still be used instead of"
+                      + " crawling.",
+                  false,
+                  DEFAULT_CLUSTER_SNAPSHOT_MAX_AGE))
+          .property(
+              PropertyUtil.integer(
+                  CLUSTER_LEASE_DURATION,
+                  "Cluster Lease Duration",
+                  "How long in seconds the crawl lease lasts. Should be longer than a crawl.",
+                  false,
+                  DEFAULT_CLUSTER_LEASE_DURATION))
+          .property(
+              PropertyUtil.bool(
+                  ADAPTIVE_REFRESH,
+                  "Adaptive Refresh",
+                  "Refresh hosts from Datadog more often while the fleet is changing and less"
+                      + " often while it is quiet or rate limited. Between refreshes the previous"
+                      + " nodes are returned. Set the Rundeck refresh interval to at most the"
+                      + " min interval.",
+                  false,
+                  "false"))
+          .property(
+              PropertyUtil.integer(
+                  ADAPTIVE_REFRESH_MIN_INTERVAL,
+                  "Adaptive Refresh Min Interval",
+                  "The shortest time in seconds between adaptive refreshes.",
+                  false,
+                  DEFAULT_ADAPTIVE_REFRESH_MIN_INTERVAL))
+          .property(
+              PropertyUtil.integer(
+                  ADAPTIVE_REFRESH_MAX_INTERVAL,
+                  "Adaptive Refresh Max Interval",
+                  "The longest time in seconds between adaptive refreshes.",
+                  false,
+                  DEFAULT_ADAPTIVE_REFRESH_MAX_INTERVAL))
+          .property(
+              PropertyUtil.string(
+                  NODE_CHANGE_LISTENERS,
+                  "Node Change Listeners",
+                  "A comma separated list of `NodeChangeListener` class names to notify with the"
+                      + " nodes added, removed and changed on every refresh. Each class must be"
+                      + " registered as a service provider in a jar on the plugin class path.",
+                  false,
+                  null))
           .build();
 
   /**
@@ -95,8 +265,10 @@ public class DatadogResourceModelSourceFactory implements ResourceModelSourceFac
    *
    * @param properties Properties passed in by Rundeck application
    * @return a DatadogResourceModelSource
+   * @throws ConfigurationException if the configuration is invalid
    */
-  public ResourceModelSource createResourceModelSource(final Properties properties) {
+  public ResourceModelSource createResourceModelSource(final Properties properties)
+      throws ConfigurationException {
     logger.debug("Attempting to create a new DatadogResourceModelSource...");
     return new DatadogResourceModelSource(properties);
   }
@@ -1,42 +1,85 @@
 package com.wayfair.rundeck.plugin.resources.datadog;
 
+import static com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHostRequest.getCompactDatadogHosts;
 import static com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHostRequest.getDatadogHosts;
 
+import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.common.NodeEntryImpl;
 import com.dtolabs.rundeck.core.common.NodeSetImpl;
 import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
 import com.google.common.annotations.VisibleForTesting;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CompactHostStore;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CrawlStats;
 import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHost;
 import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogMetaData;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogOrg;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.PartitionPlan;
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.StringDictionary;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /** HostToNodeMapper maps Datadog hosts to Rundeck Nodes. */
 class HostToNodeMapper {
   private static final Logger logger = LoggerFactory.getLogger(HostToNodeMapper.class);
-  private final String filterString;
-  private final String appKey;
-  private final String apiKey;
-  private final Set<String> inputTagSet;
+
+  /** Node attribute holding the name of the Datadog organization a node came from. */
+  static final String ORIGIN_ATTRIBUTE = "datadogOrg";
+
+  /** Max concurrent requests value that doesn't bound the requests in flight. */
+  static final int UNBOUNDED_REQUESTS = 0;
+
+  /** How hosts are held between fetching and mapping. */
+  enum HostStore {
+    /** Hosts are held as Datadog host objects. */
+    OBJECT,
+    /** Hosts are held in a compact host store on the heap. */
+    COMPACT,
+    /** Hosts are held in a compact host store with its columns off-heap. */
+    COMPACT_OFF_HEAP
+  }
+
+  private final List<DatadogOrg> orgs;
+  private final Map<DatadogOrg, PartitionPlan> partitionPlans = new IdentityHashMap<>();
+  private final int maxConcurrentRequests;
+  private final HostStore hostStore;
+  private final TagProjection projection;
 
   /**
    * Constructs a HostToNodeMapper.
    *
-   * @param filterString the filter string for hosts
-   * @param appKey the Datadog APP key
-   * @param apiKey the Datadog API key
-   * @param inputTagSet the Datadog tags to map to nodes
+   * @param orgs the Datadog organizations to retrieve hosts from, in order of precedence
+   * @param partitionTags the `key:value` tags to partition each organization's query by
+   * @param maxConcurrentRequests the max amount of requests in flight across all organizations;
+   *     {@link #UNBOUNDED_REQUESTS} to request every page at once
+   * @param hostStore how hosts are held between fetching and mapping
+   * @param projection the projection of Datadog tags to node tags and attributes
    */
-  HostToNodeMapper(String filterString, String appKey, String apiKey, Set<String> inputTagSet) {
-    this.filterString = filterString;
-    this.appKey = appKey;
-    this.apiKey = apiKey;
-    this.inputTagSet = inputTagSet;
+  HostToNodeMapper(
+      List<DatadogOrg> orgs,
+      List<String> partitionTags,
+      int maxConcurrentRequests,
+      HostStore hostStore,
+      TagProjection projection) {
+    this.orgs = orgs;
+    // Each organization has its own plan, since partitioning is disabled per organization
+    for (DatadogOrg org : orgs) {
+      partitionPlans.put(org, new PartitionPlan(partitionTags));
+    }
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.hostStore = hostStore;
+    this.projection = projection;
   }
 
   /**
@@ -46,119 +89,307 @@ class HostToNodeMapper {
    * @param inputTagSet Datadog tags
    */
   @VisibleForTesting
-  static NodeSetImpl mapHosts(Set<DatadogHost> hosts, Set<String> inputTagSet) {
+  static NodeSetImpl mapHosts(Collection<DatadogHost> hosts, Set<String> inputTagSet) {
+    return mapHosts(hosts, TagProjection.tagsOnly(inputTagSet), null);
+  }
+
+  /**
+   * Maps host properties to Rundeck node attributes.
+   *
+   * @param hosts Datadog hosts
+   * @param projection the projection of Datadog tags to node tags and attributes
+   * @param origin the name of the Datadog organization the hosts came from; may be null
+   */
+  @VisibleForTesting
+  static NodeSetImpl mapHosts(
+      Collection<DatadogHost> hosts, TagProjection projection, String origin) {
     final NodeSetImpl nodeSet = new NodeSetImpl();
 
     for (DatadogHost host : hosts) {
-      final NodeEntryImpl node = new NodeEntryImpl();
+      DatadogMetaData metaData = host.getMetaData();
+
+      // Grab the metadata if available for more detailed OS information
+      boolean hasVersions =
+          metaData != null
+              && !metaData.isEmpty()
+              && (metaData.getUnixVersionList() != null
+                  && metaData.getUnixVersionList().size() >= 2)
+              && (metaData.getWindowsVersionList() != null
+                  && metaData.getWindowsVersionList().size() >= 2);
+
+      NodeEntryImpl node =
+          mapHost(
+              host.getHostName(),
+              host.getDatadogTags(),
+              metaData != null ? metaData.getOperatingSystemPlatform() : null,
+              hasVersions ? metaData.getWindowsVersionList() : null,
+              hasVersions ? metaData.getUnixVersionList() : null,
+              host.isMuted(),
+              host.getSources().toString(),
+              projection,
+              origin);
+
+      if (node != null) {
+        logger.debug("Adding node: " + node.getNodename());
+        nodeSet.putNode(node);
+      }
+    }
+
+    return nodeSet;
+  }
+
+  /**
+   * Maps hosts from a compact host store to Rundeck node attributes.
+   *
+   * @param store Datadog hosts
+   * @param projection the projection of Datadog tags to node tags and attributes
+   * @param origin the name of the Datadog organization the hosts came from; may be null
+   */
+  @VisibleForTesting
+  static NodeSetImpl mapHosts(CompactHostStore store, TagProjection projection, String origin) {
+    final NodeSetImpl nodeSet = new NodeSetImpl();
 
-      if (inputTagSet.size() > 0) {
-        Set<String> datadogTags =
-            host.getDatadogTags().stream()
-                .filter(tag -> inputTagSet.contains(tag.split(":")[0]))
-                .collect(Collectors.toSet());
+    for (int i = 0; i < store.size(); i++) {
+      String windowsName = store.getOsName(i, true);
+      String unixName = store.getOsName(i, false);
 
-        node.setTags(datadogTags);
+      NodeEntryImpl node =
+          mapHost(
+              store.getHostName(i),
+              store.getDatadogTags(i),
+              store.getOperatingSystemPlatform(i),
+              windowsName != null ? Arrays.asList(windowsName, store.getOsVersion(i, true)) : null,
+              unixName != null ? Arrays.asList(unixName, store.getOsVersion(i, false)) : null,
+              store.isMuted(i),
+              store.getSources(i),
+              projection,
+              origin);
 
-        logger.debug("[Datadog Node Source] Tags: " + datadogTags);
+      if (node != null) {
+        logger.debug("Adding node: " + node.getNodename());
+        nodeSet.putNode(node);
       }
+    }
 
-      // Set the node and host name to the fqdn format
-      String fqdn = host.getHostName();
+    return nodeSet;
+  }
 
-      node.setNodename(fqdn);
-      node.setHostname(fqdn);
+  /**
+   * Maps a single host to a Rundeck node.
+   *
+   * @param fqdn the host name
+   * @param hostTags the distinct Datadog tags of the host
+   * @param platform the OS platform from the host metadata; may be null
+   * @param windowsVersions the Windows name and version from the metadata; null if unavailable
+   * @param unixVersions the Unix name and version from the metadata; null if unavailable
+   * @param muted the mute status of the host
+   * @param sources the host's sources
+   * @param projection the projection of Datadog tags to node tags and attributes
+   * @param origin the name of the Datadog organization the host came from; may be null
+   * @return the node; null if the host has to be discarded
+   */
+  private static NodeEntryImpl mapHost(
+      String fqdn,
+      Collection<String> hostTags,
+      String platform,
+      List<String> windowsVersions,
+      List<String> unixVersions,
+      boolean muted,
+      String sources,
+      TagProjection projection,
+      String origin) {
+    final NodeEntryImpl node = new NodeEntryImpl();
 
-      DatadogMetaData metaData = host.getMetaData();
-      String osPlatform = "";
-
-      if (metaData != null && metaData.getOperatingSystemPlatform() != null) {
-        osPlatform = metaData.getOperatingSystemPlatform().toLowerCase().trim();
-      } else {
-        // Check for any Datadog tags for operatingsystem if there is no platform metadata
-        // This can happen with certain nodes from integrations like vSphere. The Datadog agent
-        // will generally add this tag though.
-        for (String tag : host.getDatadogTags()) {
-          if (tag.toLowerCase().startsWith("operatingsystem:")) {
-            osPlatform = tag.toLowerCase().trim().split(":")[1];
-          }
+    // Copy the configured tags and set the projected attributes in one pass over the tags
+    projection.apply(hostTags, node);
+
+    logger.debug("[Datadog Node Source] Tags: " + node.getTags());
+
+    // Set the node and host name to the fqdn format
+    node.setNodename(fqdn);
+    node.setHostname(fqdn);
+
+    String osPlatform = "";
+
+    if (platform != null) {
+      osPlatform = platform.toLowerCase().trim();
+    } else {
+      // Check for any Datadog tags for operatingsystem if there is no platform metadata
+      // This can happen with certain nodes from integrations like vSphere. The Datadog agent
+      // will generally add this tag though.
+      for (String tag : hostTags) {
+        if (tag.toLowerCase().startsWith("operatingsystem:")) {
+          osPlatform = tag.toLowerCase().trim().split(":")[1];
         }
       }
+    }
 
-      // Rundeck needs this information so we need to discard the host if it's missing
-      if ("".equals(osPlatform)) {
-        logger.warn("Could not determine an OS for the following host: " + fqdn);
-        continue;
+    // Rundeck needs this information so we need to discard the host if it's missing
+    if ("".equals(osPlatform)) {
+      logger.warn("Could not determine an OS for the following host: " + fqdn);
+      return null;
+    }
+
+    // OS Family is important for Rundeck's selection of node executors
+    node.setOsFamily(osPlatform.contains("win") ? "windows" : "unix");
+
+    List<String> osVersions = "windows".equals(node.getOsFamily()) ? windowsVersions : unixVersions;
+
+    if (osVersions != null) {
+      String osVersion = osVersions.get(1);
+
+      if (!"".equals(osVersion)) {
+        node.setOsVersion(osVersion);
       }
 
-      // OS Family is important for Rundeck's selection of node executors
-      node.setOsFamily(osPlatform.contains("win") ? "windows" : "unix");
+      String osName = osVersions.get(0);
 
-      // Grab the metadata if available for more detailed OS information
-      if (metaData != null && !metaData.isEmpty()) {
-        if ((metaData.getUnixVersionList() != null && metaData.getUnixVersionList().size() >= 2)
-            && (metaData.getWindowsVersionList() != null
-            && metaData.getWindowsVersionList().size() >= 2)) {
-          String osVersion =
-              "windows".equals(node.getOsFamily())
-                  ? host.getMetaData().getWindowsVersionList().get(1)
-                  : host.getMetaData().getUnixVersionList().get(1);
-
-          if (!"".equals(osVersion)) {
-            node.setOsVersion(osVersion);
-          }
-
-          String osName =
-              "windows".equals(node.getOsFamily())
-                  ? metaData.getWindowsVersionList().get(0)
-                  : metaData.getUnixVersionList().get(0);
-
-          if (!"".equals(osName)) {
-            node.setOsName(osName);
-          }
-        }
+      if (!"".equals(osName)) {
+        node.setOsName(osName);
       }
+    }
+
+    if (node.getOsName() == null || "".equals(node.getOsName())) {
+      node.setOsName(osPlatform);
+    }
+
+    if (!projection.isDropDefaultAttributes()) {
+      node.setAttribute("isMuted", Boolean.toString(muted));
+      node.setAttribute("sources", sources);
+    }
+
+    if (origin != null) {
+      node.setAttribute(ORIGIN_ATTRIBUTE, origin);
+    }
+
+    return node;
+  }
+
+  /**
+   * Merges nodes into a target node set.
+   *
+   * <p>Nodes are merged in order of organization precedence, so when a nodename is already present
+   * the existing node is kept and the conflicting one is dropped.
+   *
+   * @param target the node set to merge into
+   * @param source the nodes to merge
+   */
+  @VisibleForTesting
+  static void mergeNodes(NodeSetImpl target, NodeSetImpl source) {
+    for (INodeEntry node : source.getNodes()) {
+      INodeEntry existing = target.getNode(node.getNodename());
+
+      if (existing != null) {
+        logger.warn(
+            "Duplicate nodename "
+                + node.getNodename()
+                + " from "
+                + node.getAttributes().get(ORIGIN_ATTRIBUTE)
+                + "; keeping the node from "
+                + existing.getAttributes().get(ORIGIN_ATTRIBUTE));
+        continue;
+      }
+
+      target.putNode(node);
+    }
+  }
+
+  /**
+   * Retrieves hosts from a Datadog organization and maps them to Rundeck nodes.
+   *
+   * @param org the Datadog organization
+   * @param requestExecutor the executor to run the requests on
+   * @param dictionary the dictionary shared by the compact host stores of a refresh
+   * @param stats the crawl cost to add to
+   * @return a set of Rundeck nodes
+   */
+  private NodeSetImpl fetchNodes(
+      DatadogOrg org,
+      ExecutorService requestExecutor,
+      StringDictionary dictionary,
+      CrawlStats stats)
+      throws IOException, ExecutionException, InterruptedException {
+    if (hostStore == HostStore.OBJECT) {
+      Collection<DatadogHost> hostSet =
+          getDatadogHosts(org, partitionPlans.get(org), requestExecutor, stats);
 
-      if (node.getOsName() == null || "".equals(node.getOsName())) {
-        node.setOsName(osPlatform);
+      if (hostSet.isEmpty()) {
+        logger.info("[Datadog Node Source] No hosts were returned from " + org.getName());
       }
 
-      node.setAttribute("isMuted", Boolean.toString(host.isMuted()));
-      node.setAttribute("sources", host.getSources().toString());
+      return mapHosts(hostSet, projection, org.getName());
+    }
+
+    CompactHostStore store =
+        getCompactDatadogHosts(
+            org,
+            partitionPlans.get(org),
+            requestExecutor,
+            dictionary,
+            hostStore == HostStore.COMPACT_OFF_HEAP,
+            stats);
 
-      logger.debug("Adding node: " + node.getNodename());
-      nodeSet.putNode(node);
+    if (store.isEmpty()) {
+      logger.info("[Datadog Node Source] No hosts were returned from " + org.getName());
     }
 
-    return nodeSet;
+    return mapHosts(store, projection, org.getName());
   }
 
   /**
    * Retrieves hosts from Datadog and maps them to Rundeck nodes.
    *
+   * <p>Organizations are crawled and mapped concurrently and share a single request budget, so a
+   * refresh takes about as long as the slowest organization. Without a budget every page gets its
+   * own thread, like a crawl of a single organization always did.
+   *
+   * @param stats the crawl cost to add to
    * @return a set of Rundeck nodes
    * @throws ResourceModelSourceException Rundeck resource model exception
    */
-  NodeSetImpl performQuery() throws ResourceModelSourceException {
-    Set<DatadogHost> hostSet;
-
+  NodeSetImpl performQuery(CrawlStats stats) throws ResourceModelSourceException {
     logger.info("[Datadog Node Source] Begin - Getting Datadog hosts");
+
+    ExecutorService requestExecutor =
+        maxConcurrentRequests == UNBOUNDED_REQUESTS
+            ? Executors.newCachedThreadPool()
+            : Executors.newFixedThreadPool(maxConcurrentRequests);
+    ExecutorService orgExecutor = Executors.newFixedThreadPool(orgs.size());
+    StringDictionary dictionary = new StringDictionary();
+
+    NodeSetImpl nodeSet = new NodeSetImpl();
+
     try {
-      hostSet = getDatadogHosts(filterString, appKey, apiKey);
-    } catch (IOException | ExecutionException | TimeoutException | InterruptedException ex) {
-      throw new ResourceModelSourceException(
-          "Exception while fetching Datadog hosts: " + ex.toString(), ex);
-    }
+      List<Future<NodeSetImpl>> futureList = new ArrayList<>();
 
-    if (hostSet.isEmpty()) {
-      logger.info("[Datadog Node Source] No hosts were returned from Datadog");
-    }
+      for (DatadogOrg org : orgs) {
+        futureList.add(
+            orgExecutor.submit(() -> fetchNodes(org, requestExecutor, dictionary, stats)));
+      }
 
-    NodeSetImpl nodeSet = mapHosts(hostSet, inputTagSet);
+      // Merge in configuration order so the first configured organization wins on conflicts
+      for (Future<NodeSetImpl> result : futureList) {
+        mergeNodes(nodeSet, result.get());
+      }
+    } catch (ExecutionException ex) {
+      throw new ResourceModelSourceException(
+          "Exception while fetching Datadog hosts: " + ex.getCause().toString(), ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ResourceModelSourceException(
+          "Interrupted while fetching Datadog hosts: " + ex.toString(), ex);
+    } finally {
+      orgExecutor.shutdownNow();
+      requestExecutor.shutdownNow();
+    }
 
     logger.info(
-        "[Datadog Node Source] End - Returning " + nodeSet.getNodes().size() + " Datadog hosts");
+        "[Datadog Node Source] End - Returning "
+            + nodeSet.getNodes().size()
+            + " Datadog hosts ("
+            + stats
+            + ")");
 
     return nodeSet;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,221 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NodeChangeFeed computes the changes between consecutive node snapshots.
+ *
+ * <p>Nodes are keyed by nodename, so the diff is a single pass over both snapshots using the node
+ * set lookups. The first snapshot reports every node as added. Changes are logged as `key=value`
+ * fields, counted and passed on to any registered listeners. Listeners configured on the source
+ * are loaded as {@link NodeChangeListener} service providers.
+ */
+public class NodeChangeFeed {
+  private static final Logger logger = LoggerFactory.getLogger(NodeChangeFeed.class);
+  private final List<NodeChangeListener> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong addedCount = new AtomicLong();
+  private final AtomicLong removedCount = new AtomicLong();
+  private final AtomicLong changedCount = new AtomicLong();
+  private final AtomicLong refreshCount = new AtomicLong();
+  private INodeSet previous;
+
+  /**
+   * Computes the changes between two node snapshots.
+   *
+   * @param previous the previous snapshot; may be null
+   * @param current the current snapshot
+   * @return the node changes
+   */
+  static NodeChanges diff(INodeSet previous, INodeSet current) {
+    List<String> added = new ArrayList<>();
+    List<String> removed = new ArrayList<>();
+    List<String> changed = new ArrayList<>();
+
+    for (INodeEntry node : current.getNodes()) {
+      INodeEntry previousNode = previous == null ? null : previous.getNode(node.getNodename());
+
+      if (previousNode == null) {
+        added.add(node.getNodename());
+      } else if (!Objects.equals(previousNode.getAttributes(), node.getAttributes())
+          || !Objects.equals(previousNode.getTags(), node.getTags())) {
+        changed.add(node.getNodename());
+      }
+    }
+
+    if (previous != null) {
+      for (INodeEntry node : previous.getNodes()) {
+        if (current.getNode(node.getNodename()) == null) {
+          removed.add(node.getNodename());
+        }
+      }
+    }
+
+    return new NodeChanges(added, removed, changed);
+  }
+
+  /**
+   * Records a new snapshot and notifies listeners of the changes against the previous one.
+   *
+   * @param current the current snapshot
+   * @return the node changes
+   */
+  synchronized NodeChanges update(INodeSet current) {
+    NodeChanges changes = diff(previous, current);
+    previous = current;
+
+    refreshCount.incrementAndGet();
+    addedCount.addAndGet(changes.getAdded().size());
+    removedCount.addAndGet(changes.getRemoved().size());
+    changedCount.addAndGet(changes.getChanged().size());
+
+    logger.info(
+        "[Datadog Node Source] event=node_changes refresh="
+            + refreshCount.get()
+            + " nodes="
+            + current.getNodes().size()
+            + " added="
+            + changes.getAdded().size()
+            + " removed="
+            + changes.getRemoved().size()
+            + " changed="
+            + changes.getChanged().size());
+
+    if (logger.isDebugEnabled()) {
+      logNodes("node_added", changes.getAdded());
+      logNodes("node_removed", changes.getRemoved());
+      logNodes("node_changed", changes.getChanged());
+    }
+
+    for (NodeChangeListener listener : listeners) {
+      // A failing listener should not fail the refresh
+      try {
+        listener.onNodesChanged(changes);
+      } catch (RuntimeException ex) {
+        logger.error("Exception in node change listener: " + ex.toString());
+      }
+    }
+
+    return changes;
+  }
+
+  /**
+   * Logs an event per node at `DEBUG`.
+   *
+   * @param event the event name
+   * @param nodenames the nodenames
+   */
+  private static void logNodes(String event, List<String> nodenames) {
+    for (String nodename : nodenames) {
+      logger.debug("[Datadog Node Source] event=" + event + " nodename=" + nodename);
+    }
+  }
+
+  /**
+   * Registers the configured listeners from the {@link NodeChangeListener} service providers.
+   *
+   * <p>Providers are declared in `META-INF/services` of a jar visible to the class loader. Only
+   * the providers whose class is configured are registered.
+   *
+   * @param classNames the class names of the listeners to register
+   * @param classLoader the class loader to look up service providers with
+   * @throws IllegalArgumentException if a configured class isn't a service provider
+   */
+  void registerListeners(Collection<String> classNames, ClassLoader classLoader) {
+    Set<String> missing = new HashSet<>(classNames);
+    missing.remove("");
+
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    Iterator<NodeChangeListener> providers =
+        ServiceLoader.load(NodeChangeListener.class, classLoader).iterator();
+
+    while (providers.hasNext()) {
+      // A broken provider that isn't configured should not prevent loading the others
+      try {
+        NodeChangeListener listener = providers.next();
+
+        if (missing.remove(listener.getClass().getName())) {
+          addListener(listener);
+          logger.info("Registered node change listener " + listener.getClass().getName());
+        }
+      } catch (ServiceConfigurationError ex) {
+        logger.error("Exception while loading a node change listener: " + ex.toString());
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      throw new IllegalArgumentException(
+          "No NodeChangeListener service provider found for " + missing);
+    }
+  }
+
+  /**
+   * Registers a listener for node changes.
+   *
+   * @param listener the listener
+   */
+  public void addListener(NodeChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregisters a listener for node changes.
+   *
+   * @param listener the listener
+   */
+  public void removeListener(NodeChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Get the total count of added nodes across all refreshes.
+   *
+   * @return the added node count
+   */
+  public long getAddedCount() {
+    return addedCount.get();
+  }
+
+  /**
+   * Get the total count of removed nodes across all refreshes.
+   *
+   * @return the removed node count
+   */
+  public long getRemovedCount() {
+    return removedCount.get();
+  }
+
+  /**
+   * Get the total count of changed nodes across all refreshes.
+   *
+   * @return the changed node count
+   */
+  public long getChangedCount() {
+    return changedCount.get();
+  }
+
+  /**
+   * Get the count of recorded refreshes.
+   *
+   * @return the refresh count
+   */
+  public long getRefreshCount() {
+    return refreshCount.get();
+  }
+}
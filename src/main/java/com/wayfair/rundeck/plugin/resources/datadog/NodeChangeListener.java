@@ -0,0 +1,12 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+/** NodeChangeListener is notified with the node changes of every successful refresh. */
+public interface NodeChangeListener {
+
+  /**
+   * Called after a refresh with the changes against the previous refresh.
+   *
+   * @param changes the node changes
+   */
+  void onNodesChanged(NodeChanges changes);
+}
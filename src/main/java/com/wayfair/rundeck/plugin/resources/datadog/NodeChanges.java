@@ -0,0 +1,66 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import java.util.Collections;
+import java.util.List;
+
+/** NodeChanges holds the nodenames added, removed and changed between two node snapshots. */
+public final class NodeChanges {
+  private final List<String> added;
+  private final List<String> removed;
+  private final List<String> changed;
+
+  /**
+   * Constructs a NodeChanges.
+   *
+   * @param added nodenames present only in the current snapshot
+   * @param removed nodenames present only in the previous snapshot
+   * @param changed nodenames present in both snapshots with different attributes or tags
+   */
+  NodeChanges(List<String> added, List<String> removed, List<String> changed) {
+    this.added = Collections.unmodifiableList(added);
+    this.removed = Collections.unmodifiableList(removed);
+    this.changed = Collections.unmodifiableList(changed);
+  }
+
+  /**
+   * Get the added nodenames.
+   *
+   * @return the added nodenames
+   */
+  public List<String> getAdded() {
+    return added;
+  }
+
+  /**
+   * Get the removed nodenames.
+   *
+   * @return the removed nodenames
+   */
+  public List<String> getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Get the changed nodenames.
+   *
+   * @return the changed nodenames
+   */
+  public List<String> getChanged() {
+    return changed;
+  }
+
+  /**
+   * Check if nothing changed between the snapshots.
+   *
+   * @return true if there are no changes; false otherwise
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "added: " + added.size() + ", removed: " + removed.size() + ", changed: "
+        + changed.size();
+  }
+}
@@ -0,0 +1,239 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * NodeSnapshot reads and writes a versioned, compact snapshot of a node set.
+ *
+ * <p>The snapshot is a gzipped stream with a header (magic, format version and creation time), a
+ * table of the distinct strings as length-prefixed UTF-8 bytes and then every node's attributes
+ * and tags as codes into that table. Snapshots are written to a temporary file and moved into
+ * place, so readers never see a partial snapshot.
+ */
+final class NodeSnapshot {
+
+  // "DDNS" - Datadog node snapshot
+  private static final int MAGIC = 0x44444e53;
+
+  // Bump when the layout changes; snapshots of other versions are ignored
+  private static final int FORMAT_VERSION = 2;
+
+  private final long createdAt;
+  private final INodeSet nodes;
+
+  private NodeSnapshot(long createdAt, INodeSet nodes) {
+    this.createdAt = createdAt;
+    this.nodes = nodes;
+  }
+
+  /**
+   * Get the time the snapshot was taken.
+   *
+   * @return the creation time in epoch milliseconds
+   */
+  long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * Get the nodes of the snapshot.
+   *
+   * @return the nodes
+   */
+  INodeSet getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Writes a snapshot of a node set.
+   *
+   * @param path the snapshot file
+   * @param nodes the nodes
+   * @param createdAt the creation time in epoch milliseconds
+   * @throws IOException if the snapshot can't be written
+   */
+  static void write(Path path, INodeSet nodes, long createdAt) throws IOException {
+    Map<String, Integer> codes = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+
+    for (INodeEntry node : nodes.getNodes()) {
+      for (Map.Entry<String, String> attribute : attributes(node)) {
+        encode(codes, strings, attribute.getKey());
+        encode(codes, strings, attribute.getValue());
+      }
+      for (String tag : tags(node)) {
+        encode(codes, strings, tag);
+      }
+    }
+
+    Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(
+              new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(createdAt);
+
+        out.writeInt(strings.size());
+        // Not writeUTF, which is limited to 65535 bytes per string
+        for (String value : strings) {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+
+        out.writeInt(nodes.getNodes().size());
+        for (INodeEntry node : nodes.getNodes()) {
+          List<Map.Entry<String, String>> attributes = attributes(node);
+          out.writeInt(attributes.size());
+          for (Map.Entry<String, String> attribute : attributes) {
+            out.writeInt(codes.get(attribute.getKey()));
+            out.writeInt(codes.get(attribute.getValue()));
+          }
+
+          Set<String> tags = tags(node);
+          out.writeInt(tags.size());
+          for (String tag : tags) {
+            out.writeInt(codes.get(tag));
+          }
+        }
+      }
+
+      Files.move(
+          temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Reads the creation time of a snapshot without reading its nodes.
+   *
+   * @param path the snapshot file
+   * @return the creation time in epoch milliseconds; -1 if there is no snapshot of this version
+   * @throws IOException if the snapshot can't be read
+   */
+  static long readCreatedAt(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      return -1;
+    }
+
+    try (DataInputStream in = open(path)) {
+      return readHeader(in);
+    }
+  }
+
+  /**
+   * Reads a snapshot.
+   *
+   * @param path the snapshot file
+   * @return the snapshot; null if there is no snapshot of this version
+   * @throws IOException if the snapshot can't be read
+   */
+  static NodeSnapshot read(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      return null;
+    }
+
+    try (DataInputStream in = open(path)) {
+      long createdAt = readHeader(in);
+
+      if (createdAt < 0) {
+        return null;
+      }
+
+      String[] strings = new String[in.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      NodeSetImpl nodeSet = new NodeSetImpl();
+      int nodeCount = in.readInt();
+
+      for (int i = 0; i < nodeCount; i++) {
+        NodeEntryImpl node = new NodeEntryImpl();
+
+        int attributeCount = in.readInt();
+        for (int j = 0; j < attributeCount; j++) {
+          node.setAttribute(strings[in.readInt()], strings[in.readInt()]);
+        }
+
+        int tagCount = in.readInt();
+        Set<String> tags = new HashSet<>();
+        for (int j = 0; j < tagCount; j++) {
+          tags.add(strings[in.readInt()]);
+        }
+        node.setTags(tags);
+
+        nodeSet.putNode(node);
+      }
+
+      return new NodeSnapshot(createdAt, nodeSet);
+    }
+  }
+
+  private static DataInputStream open(Path path) throws IOException {
+    return new DataInputStream(
+        new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))));
+  }
+
+  private static long readHeader(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+      return -1;
+    }
+
+    return in.readLong();
+  }
+
+  private static List<Map.Entry<String, String>> attributes(INodeEntry node) {
+    List<Map.Entry<String, String>> attributes = new ArrayList<>();
+
+    if (node.getAttributes() != null) {
+      for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+        if (attribute.getKey() != null && attribute.getValue() != null) {
+          attributes.add(attribute);
+        }
+      }
+    }
+
+    return attributes;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<String> tags(INodeEntry node) {
+    Set<String> tags = node.getTags();
+    return tags != null ? tags : Collections.emptySet();
+  }
+
+  private static void encode(Map<String, Integer> codes, List<String> strings, String value) {
+    if (!codes.containsKey(value)) {
+      codes.put(value, strings.size());
+      strings.add(value);
+    }
+  }
+}
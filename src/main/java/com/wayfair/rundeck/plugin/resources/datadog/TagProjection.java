@@ -0,0 +1,174 @@
+package com.wayfair.rundeck.plugin.resources.datadog;
+
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * TagProjection decides which Datadog tags end up on a node and how.
+ *
+ * <p>Tags whose key is in the tag set are copied to the node tags as-is. Tags whose key has a
+ * projection rule are set as a node attribute instead, so Rundeck can filter on the attribute
+ * (`role: web`) rather than scanning node tags. The rules are compiled once per node source and
+ * applied in the mapping pass.
+ */
+final class TagProjection {
+
+  /** Attributes always set by the plugin that can be dropped to keep nodes small. */
+  static final List<String> DEFAULT_ATTRIBUTES = Arrays.asList("isMuted", "sources");
+
+  // Attributes managed by Rundeck or the mapper that a rule can't overwrite
+  private static final Set<String> RESERVED_ATTRIBUTES =
+      new HashSet<>(
+          Arrays.asList(
+              "nodename",
+              "hostname",
+              "username",
+              "description",
+              "tags",
+              "osFamily",
+              "osName",
+              "osVersion",
+              "osArch",
+              HostToNodeMapper.ORIGIN_ATTRIBUTE));
+
+  private final Set<String> tagKeys;
+  private final Map<String, String> attributeByTagKey;
+  private final boolean dropDefaultAttributes;
+
+  /**
+   * Constructs a TagProjection.
+   *
+   * @param tagKeys the Datadog tag keys to copy to node tags
+   * @param attributeByTagKey the node attribute to set for each Datadog tag key
+   * @param dropDefaultAttributes true to leave out the `isMuted` and `sources` attributes
+   */
+  TagProjection(
+      Set<String> tagKeys, Map<String, String> attributeByTagKey, boolean dropDefaultAttributes) {
+    this.tagKeys = tagKeys;
+    this.attributeByTagKey = attributeByTagKey;
+    this.dropDefaultAttributes = dropDefaultAttributes;
+  }
+
+  /**
+   * Creates a TagProjection that only copies tags.
+   *
+   * @param tagKeys the Datadog tag keys to copy to node tags
+   * @return a TagProjection
+   */
+  static TagProjection tagsOnly(Set<String> tagKeys) {
+    return new TagProjection(tagKeys, Collections.emptyMap(), false);
+  }
+
+  /**
+   * Parses projection rules.
+   *
+   * <p>Rules are comma separated and either `tagKey=attribute` or `tagKey`, which uses the tag key
+   * as the attribute name. The `isMuted` and `sources` attributes can only be targeted when they
+   * are dropped, since the mapper sets them after the projection.
+   *
+   * @param rules the projection rules; may be empty
+   * @param dropDefaultAttributes true if the `isMuted` and `sources` attributes are left out
+   * @return the node attribute for each Datadog tag key
+   * @throws IllegalArgumentException if a rule is malformed or targets a reserved attribute
+   */
+  static Map<String, String> parseRules(String rules, boolean dropDefaultAttributes) {
+    Map<String, String> attributeByTagKey = new LinkedHashMap<>();
+
+    if (rules == null || "".equals(rules.trim())) {
+      return attributeByTagKey;
+    }
+
+    for (String rule : rules.replaceAll("\\s", "").split(",")) {
+      if ("".equals(rule)) {
+        continue;
+      }
+
+      String[] parts = rule.split("=", -1);
+
+      if (parts.length > 2 || "".equals(parts[0]) || (parts.length == 2 && "".equals(parts[1]))) {
+        throw new IllegalArgumentException("Invalid projection rule: " + rule);
+      }
+
+      String attribute = parts.length == 2 ? parts[1] : parts[0];
+
+      if (RESERVED_ATTRIBUTES.contains(attribute)) {
+        throw new IllegalArgumentException("Reserved attribute in projection rule: " + rule);
+      }
+
+      if (!dropDefaultAttributes && DEFAULT_ATTRIBUTES.contains(attribute)) {
+        throw new IllegalArgumentException(
+            "Default attribute in projection rule without dropping default attributes: " + rule);
+      }
+
+      attributeByTagKey.put(parts[0], attribute);
+    }
+
+    return attributeByTagKey;
+  }
+
+  /**
+   * Check if the `isMuted` and `sources` attributes are left out.
+   *
+   * @return true if the default attributes are dropped; false otherwise
+   */
+  boolean isDropDefaultAttributes() {
+    return dropDefaultAttributes;
+  }
+
+  /**
+   * Applies the projection to a node in a single pass over the host tags.
+   *
+   * <p>Tags with several values for a projected key are joined into a sorted, comma separated
+   * attribute value so the attribute is stable between refreshes.
+   *
+   * @param hostTags the distinct Datadog tags of the host
+   * @param node the node to set tags and attributes on
+   */
+  void apply(Collection<String> hostTags, NodeEntryImpl node) {
+    if (tagKeys.isEmpty() && attributeByTagKey.isEmpty()) {
+      return;
+    }
+
+    Set<String> datadogTags = new HashSet<>();
+    Map<String, Set<String>> attributeValues = null;
+
+    for (String tag : hostTags) {
+      int separator = tag.indexOf(':');
+      String key = separator < 0 ? tag : tag.substring(0, separator);
+
+      if (tagKeys.contains(key)) {
+        datadogTags.add(tag);
+      }
+
+      String attribute = attributeByTagKey.get(key);
+
+      if (attribute != null && separator >= 0) {
+        if (attributeValues == null) {
+          attributeValues = new HashMap<>();
+        }
+        attributeValues
+            .computeIfAbsent(attribute, k -> new TreeSet<>())
+            .add(tag.substring(separator + 1));
+      }
+    }
+
+    if (!tagKeys.isEmpty()) {
+      node.setTags(datadogTags);
+    }
+
+    if (attributeValues != null) {
+      for (Map.Entry<String, Set<String>> entry : attributeValues.entrySet()) {
+        node.setAttribute(entry.getKey(), String.join(",", entry.getValue()));
+      }
+    }
+  }
+}
@@ -0,0 +1,406 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact, columnar representation of Datadog hosts.
+ *
+ * <p>Holding every host as a {@link DatadogHost} object graph is the largest heap consumer for big
+ * fleets. This store keeps only the fields needed to map hosts to nodes: host ids in a primitive
+ * column, host names as UTF-8 bytes in a column of their own since they are unique, and the
+ * strings repeated across hosts (tags, OS details and sources) as int codes against a shared
+ * {@link StringDictionary}.
+ *
+ * <p>The columns can be allocated off-heap in direct buffers. The dictionary strings stay on the
+ * heap either way; each store reads them from an array copied from the dictionary when the store
+ * is built, so mapping threads don't contend on the dictionary.
+ */
+public final class CompactHostStore {
+
+  // Fields of a host row
+  private static final int PLATFORM = 0;
+  private static final int WINDOWS_NAME = 1;
+  private static final int WINDOWS_VERSION = 2;
+  private static final int UNIX_NAME = 3;
+  private static final int UNIX_VERSION = 4;
+  private static final int SOURCES = 5;
+  private static final int FLAGS = 6;
+  private static final int ROW_WIDTH = 7;
+
+  // Flag bits
+  private static final int MUTED = 1;
+  private static final int NO_HOST_NAME = 2;
+
+  private final String[] strings;
+  private final int size;
+  private final LongBuffer ids;
+  private final ByteBuffer hostNames;
+  private final IntBuffer hostNameOffsets;
+  private final IntBuffer rows;
+  private final IntBuffer tagOffsets;
+  private final IntBuffer tags;
+
+  private CompactHostStore(
+      String[] strings,
+      int size,
+      LongBuffer ids,
+      ByteBuffer hostNames,
+      IntBuffer hostNameOffsets,
+      IntBuffer rows,
+      IntBuffer tagOffsets,
+      IntBuffer tags) {
+    this.strings = strings;
+    this.size = size;
+    this.ids = ids;
+    this.hostNames = hostNames;
+    this.hostNameOffsets = hostNameOffsets;
+    this.rows = rows;
+    this.tagOffsets = tagOffsets;
+    this.tags = tags;
+  }
+
+  /**
+   * Creates a builder for a store.
+   *
+   * @param dictionary the dictionary to encode strings with
+   * @return a Builder
+   */
+  public static Builder builder(StringDictionary dictionary) {
+    return new Builder(dictionary);
+  }
+
+  /**
+   * Get the count of hosts.
+   *
+   * @return the host count
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Check if the store has no hosts.
+   *
+   * @return true if there are no hosts; false otherwise
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Get the Datadog host id.
+   *
+   * @param index the host index
+   * @return the host id
+   */
+  public long getId(int index) {
+    return ids.get(index);
+  }
+
+  /**
+   * Get the Datadog hostname.
+   *
+   * @param index the host index
+   * @return hostname
+   */
+  public String getHostName(int index) {
+    if ((rows.get(index * ROW_WIDTH + FLAGS) & NO_HOST_NAME) != 0) {
+      return null;
+    }
+
+    int start = hostNameOffsets.get(index);
+    byte[] bytes = new byte[hostNameOffsets.get(index + 1) - start];
+
+    // Absolute gets so concurrent readers don't share a buffer position
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = hostNames.get(start + i);
+    }
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the distinct Datadog host tags.
+   *
+   * @param index the host index
+   * @return the tags
+   */
+  public List<String> getDatadogTags(int index) {
+    int end = tagOffsets.get(index + 1);
+    List<String> tagList = new ArrayList<>(end - tagOffsets.get(index));
+
+    for (int i = tagOffsets.get(index); i < end; i++) {
+      tagList.add(decode(tags.get(i)));
+    }
+
+    return tagList;
+  }
+
+  /**
+   * Get the mute status of the host.
+   *
+   * @param index the host index
+   * @return true if the host is muted; false otherwise
+   */
+  public boolean isMuted(int index) {
+    return (rows.get(index * ROW_WIDTH + FLAGS) & MUTED) != 0;
+  }
+
+  /**
+   * Get the host operating system platform from the metadata.
+   *
+   * @param index the host index
+   * @return the platform; null if there is no metadata platform
+   */
+  public String getOperatingSystemPlatform(int index) {
+    return field(index, PLATFORM);
+  }
+
+  /**
+   * Get the OS name from the metadata version details.
+   *
+   * @param index the host index
+   * @param windows true for the Windows details; false for the Unix details
+   * @return the OS name; null if the metadata has no version details
+   */
+  public String getOsName(int index, boolean windows) {
+    return field(index, windows ? WINDOWS_NAME : UNIX_NAME);
+  }
+
+  /**
+   * Get the OS version from the metadata version details.
+   *
+   * @param index the host index
+   * @param windows true for the Windows details; false for the Unix details
+   * @return the OS version; null if the metadata has no version details
+   */
+  public String getOsVersion(int index, boolean windows) {
+    return field(index, windows ? WINDOWS_VERSION : UNIX_VERSION);
+  }
+
+  /**
+   * Get the host's sources rendered as a string.
+   *
+   * @param index the host index
+   * @return the sources
+   */
+  public String getSources(int index) {
+    return field(index, SOURCES);
+  }
+
+  private String field(int index, int field) {
+    return decode(rows.get(index * ROW_WIDTH + field));
+  }
+
+  private String decode(int code) {
+    return code == StringDictionary.NULL_CODE ? null : strings[code];
+  }
+
+  /** Builder collects hosts into growable columns until the store is built. */
+  public static final class Builder implements HostCollector {
+
+    // Initial host capacity, one page of the hosts endpoint
+    private static final int INITIAL_CAPACITY = 1000;
+
+    // Initial tag capacity per host
+    private static final int INITIAL_TAGS_PER_HOST = 16;
+
+    // Initial host name capacity per host, in bytes
+    private static final int INITIAL_HOST_NAME_BYTES = 32;
+
+    // Initial id slots, a power of two at least twice the initial capacity
+    private static final int INITIAL_ID_SLOTS = 4096;
+
+    private final StringDictionary dictionary;
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private byte[] hostNames = new byte[INITIAL_CAPACITY * INITIAL_HOST_NAME_BYTES];
+    private int[] hostNameOffsets = new int[INITIAL_CAPACITY + 1];
+    private int[] rows = new int[INITIAL_CAPACITY * ROW_WIDTH];
+    private int[] tagOffsets = new int[INITIAL_CAPACITY + 1];
+    private int[] tags = new int[INITIAL_CAPACITY * INITIAL_TAGS_PER_HOST];
+    // Open addressing table of host index + 1 by host id, kept at most half full
+    private int[] idSlots = new int[INITIAL_ID_SLOTS];
+    private int size;
+    private int hostNameLength;
+    private int tagCount;
+
+    private Builder(StringDictionary dictionary) {
+      this.dictionary = dictionary;
+    }
+
+    @Override
+    public boolean add(DatadogHost host) {
+      int slot = findSlot(idSlots, host.getId());
+
+      if (idSlots[slot] != 0) {
+        return false;
+      }
+
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        hostNameOffsets = Arrays.copyOf(hostNameOffsets, size * 2 + 1);
+        rows = Arrays.copyOf(rows, size * 2 * ROW_WIDTH);
+        tagOffsets = Arrays.copyOf(tagOffsets, size * 2 + 1);
+      }
+
+      ids[size] = host.getId();
+      idSlots[slot] = size + 1;
+
+      int row = size * ROW_WIDTH;
+      DatadogMetaData metaData = host.getMetaData();
+
+      byte[] hostName =
+          host.getHostName() == null
+              ? new byte[0]
+              : host.getHostName().getBytes(StandardCharsets.UTF_8);
+
+      if (hostNameLength + hostName.length > hostNames.length) {
+        hostNames =
+            Arrays.copyOf(
+                hostNames, Math.max(hostNames.length * 2, hostNameLength + hostName.length));
+      }
+
+      System.arraycopy(hostName, 0, hostNames, hostNameLength, hostName.length);
+      hostNameLength += hostName.length;
+      hostNameOffsets[size + 1] = hostNameLength;
+
+      rows[row + PLATFORM] =
+          dictionary.encode(metaData == null ? null : metaData.getOperatingSystemPlatform());
+
+      // Version details are only used when both the Windows and Unix details are present
+      boolean hasVersions =
+          metaData != null
+              && !metaData.isEmpty()
+              && metaData.getUnixVersionList() != null
+              && metaData.getUnixVersionList().size() >= 2
+              && metaData.getWindowsVersionList() != null
+              && metaData.getWindowsVersionList().size() >= 2;
+
+      List<String> windowsVersions = hasVersions ? metaData.getWindowsVersionList() : null;
+      List<String> unixVersions = hasVersions ? metaData.getUnixVersionList() : null;
+
+      rows[row + WINDOWS_NAME] = encodeElement(windowsVersions, 0);
+      rows[row + WINDOWS_VERSION] = encodeElement(windowsVersions, 1);
+      rows[row + UNIX_NAME] = encodeElement(unixVersions, 0);
+      rows[row + UNIX_VERSION] = encodeElement(unixVersions, 1);
+      rows[row + SOURCES] =
+          dictionary.encode(host.getSources() == null ? null : host.getSources().toString());
+      rows[row + FLAGS] =
+          (host.isMuted() ? MUTED : 0) | (host.getHostName() == null ? NO_HOST_NAME : 0);
+
+      Set<String> hostTags = host.getDatadogTags();
+
+      if (tagCount + hostTags.size() > tags.length) {
+        tags = Arrays.copyOf(tags, Math.max(tags.length * 2, tagCount + hostTags.size()));
+      }
+
+      for (String tag : hostTags) {
+        tags[tagCount++] = dictionary.encode(tag);
+      }
+
+      tagOffsets[++size] = tagCount;
+
+      if (size * 2 > idSlots.length) {
+        rehash();
+      }
+
+      return true;
+    }
+
+    /**
+     * Finds the slot of a host id, or the empty slot to put it in.
+     *
+     * @param slots the slots to search
+     * @param id the host id
+     * @return the slot index
+     */
+    private int findSlot(int[] slots, long id) {
+      int mask = slots.length - 1;
+      int slot = hash(id) & mask;
+
+      while (slots[slot] != 0 && ids[slots[slot] - 1] != id) {
+        slot = (slot + 1) & mask;
+      }
+
+      return slot;
+    }
+
+    private void rehash() {
+      int[] slots = new int[idSlots.length * 2];
+
+      for (int i = 0; i < size; i++) {
+        slots[findSlot(slots, ids[i])] = i + 1;
+      }
+
+      idSlots = slots;
+    }
+
+    private static int hash(long id) {
+      long h = id * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    private int encodeElement(List<String> values, int index) {
+      return values == null ? StringDictionary.NULL_CODE : dictionary.encode(values.get(index));
+    }
+
+    /**
+     * Builds the store, trimming the columns to size.
+     *
+     * @param offHeap true to allocate the columns in direct buffers; false for heap arrays
+     * @return a CompactHostStore
+     */
+    public CompactHostStore build(boolean offHeap) {
+      LongBuffer idBuffer;
+      ByteBuffer hostNameBuffer;
+
+      if (offHeap) {
+        idBuffer = allocate(size * Long.BYTES).asLongBuffer();
+        idBuffer.put(ids, 0, size);
+        hostNameBuffer = allocate(hostNameLength);
+        hostNameBuffer.put(hostNames, 0, hostNameLength);
+      } else {
+        idBuffer = LongBuffer.wrap(Arrays.copyOf(ids, size));
+        hostNameBuffer = ByteBuffer.wrap(Arrays.copyOf(hostNames, hostNameLength));
+      }
+
+      // Every code in the columns was encoded before the copy
+      return new CompactHostStore(
+          dictionary.toArray(),
+          size,
+          idBuffer,
+          hostNameBuffer,
+          intBuffer(hostNameOffsets, size + 1, offHeap),
+          intBuffer(rows, size * ROW_WIDTH, offHeap),
+          intBuffer(tagOffsets, size + 1, offHeap),
+          intBuffer(tags, tagCount, offHeap));
+    }
+
+    private static IntBuffer intBuffer(int[] values, int length, boolean offHeap) {
+      if (!offHeap) {
+        return IntBuffer.wrap(Arrays.copyOf(values, length));
+      }
+
+      IntBuffer buffer = allocate(length * Integer.BYTES).asIntBuffer();
+      buffer.put(values, 0, length);
+      return buffer;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+      return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+  }
+}
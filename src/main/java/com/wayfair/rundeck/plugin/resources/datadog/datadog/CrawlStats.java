@@ -0,0 +1,57 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** CrawlStats counts the cost of a crawl of the Datadog hosts endpoint. */
+public final class CrawlStats {
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong rateLimited = new AtomicLong();
+
+  /**
+   * Record a parsed response.
+   *
+   * @param responseBytes the bytes read from the response body
+   */
+  void recordResponse(long responseBytes) {
+    requests.incrementAndGet();
+    bytes.addAndGet(responseBytes);
+  }
+
+  /** Record a rate limited (429) response. */
+  void recordRateLimited() {
+    rateLimited.incrementAndGet();
+  }
+
+  /**
+   * Get the count of parsed responses.
+   *
+   * @return the response count
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Get the bytes read from response bodies.
+   *
+   * @return the byte count
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Get the count of rate limited (429) responses, including retried ones.
+   *
+   * @return the rate limited response count
+   */
+  public long getRateLimited() {
+    return rateLimited.get();
+  }
+
+  @Override
+  public String toString() {
+    return "requests: " + requests + ", bytes: " + bytes + ", rate limited: " + rateLimited;
+  }
+}
@@ -6,22 +6,29 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.ExponentialBackOff;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CountingInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,13 +39,14 @@ import org.slf4j.LoggerFactory;
  * href="https://docs.datadoghq.com/api/v1/hosts/#get-all-hosts-for-your-organization">Datadog Host
  * Endpoint</a> to retrieve all hosts. This endpoint retrieves a maximum of 1000 hosts per page and
  * can be quite slow if your organization has many hosts. To work around this, we parallelize the
- * calls to speed things up.
+ * calls to speed things up. The caller owns the executor so several organizations can share one
+ * request budget.
  */
 public class DatadogHostRequest {
 
   private static final Logger logger = LoggerFactory.getLogger(DatadogHostRequest.class);
 
-  private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+  private static volatile HttpTransport httpTransport = new NetHttpTransport();
 
   private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
@@ -48,11 +56,11 @@ public class DatadogHostRequest {
   // Initial host result to start search at
   private static final int INITIAL_START_VALUE = 0;
 
-  // Result timeout value in seconds
-  private static final int RESULT_TIMEOUT_VALUE = 10;
+  // Connect and read timeout of each request attempt in milliseconds
+  private static final int REQUEST_TIMEOUT_MILLIS = 10000;
 
-  // Datadog's 'hosts' endpoint
-  private static final String HOSTS_URL = "https://api.datadoghq.com/api/v1/hosts";
+  // Status code Datadog responds with when rate limiting
+  private static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
 
   // ExponentialBackOff constants
 
@@ -73,103 +81,339 @@ public class DatadogHostRequest {
   private static final double RANDOMIZATION_FACTOR = 0.5;
 
   /**
-   * Retrieve hosts from Datadog.
+   * Replace the transport requests are sent through.
+   *
+   * @param transport the HTTP transport
+   */
+  @VisibleForTesting
+  static void setHttpTransport(HttpTransport transport) {
+    httpTransport = transport;
+  }
+
+  /**
+   * Retrieve hosts from a Datadog organization.
    *
    * <p>To save time, retrieves the first page of hosts and use the `total_matching` response field
-   * to calculate the amount of threads to use to get the remaining hosts. Uses 1 thread per
-   * request for a max of 1000 hosts. Hosts that have been active within the last 2 hours are
-   * returned (documentation shows 3 hours is the default, but testing shows this to be 2).
+   * to calculate the amount of requests needed to get the remaining hosts. Each request retrieves
+   * a max of 1000 hosts and all requests are run on the given executor, which bounds how many of
+   * them are in flight at once. Each attempt of a request times out on its own once it runs, so
+   * time spent queued on a shared executor or backing off doesn't count against it. Hosts that have
+   * been active within the last 2 hours are returned (documentation shows 3 hours is the default,
+   * but testing shows this to be 2).
+   *
+   * <p>The endpoint gets slower the deeper the `start` offset, so the query can be split into
+   * partitions by appending each of the given `key:value` tags to the filter. Every partition is
+   * paged on its own and all partitions are crawled in parallel. If the partitions don't cover all
+   * the hosts matching the unpartitioned filter, the hosts are crawled without partitions instead,
+   * and if that crawl finds hosts with none of the partition tags, partitioning is disabled in the
+   * plan. While it is disabled the hosts are crawled without partitions, and partitioning is
+   * enabled again once such a crawl finds every host in a partition.
+   *
+   * @param org the Datadog organization to retrieve hosts from
+   * @param partitions the `key:value` tags to partition the query by
+   * @param executorService the executor to run the requests on
+   * @param stats the crawl cost to add to
+   * @return a list of Datadog hosts, deduplicated by host id
+   */
+  public static Collection<DatadogHost> getDatadogHosts(
+      DatadogOrg org,
+      PartitionPlan partitions,
+      ExecutorService executorService,
+      CrawlStats stats)
+      throws IOException, ExecutionException, InterruptedException {
+    return collect(org, partitions, executorService, stats, HostsById::new).hosts.values();
+  }
+
+  /**
+   * Retrieve hosts from a Datadog organization into a compact host store.
+   *
+   * <p>Hosts are retrieved the same way as {@link #getDatadogHosts(DatadogOrg, PartitionPlan,
+   * ExecutorService, CrawlStats)}, but each page is encoded into the store as soon as it is parsed
+   * so only the compact representation of the hosts is retained.
    *
-   * @param filter string to filter search results.
-   * @param appKey Datadog APP Key
-   * @param apiKey Datadog API Key
-   * @return a list of Datadog hosts
+   * @param org the Datadog organization to retrieve hosts from
+   * @param partitions the `key:value` tags to partition the query by
+   * @param executorService the executor to run the requests on
+   * @param dictionary the dictionary to encode strings with
+   * @param offHeap true to allocate the store off-heap
+   * @param stats the crawl cost to add to
+   * @return a store of Datadog hosts, deduplicated by host id
    */
-  public static Set<DatadogHost> getDatadogHosts(String filter, String appKey, String apiKey)
-      throws IOException, ExecutionException, InterruptedException, TimeoutException {
+  public static CompactHostStore getCompactDatadogHosts(
+      DatadogOrg org,
+      PartitionPlan partitions,
+      ExecutorService executorService,
+      StringDictionary dictionary,
+      boolean offHeap,
+      CrawlStats stats)
+      throws IOException, ExecutionException, InterruptedException {
+    return collect(
+            org,
+            partitions,
+            executorService,
+            stats,
+            () -> CompactHostStore.builder(dictionary))
+        .build(offHeap);
+  }
+
+  /**
+   * Retrieve hosts from a Datadog organization into a new collector.
+   *
+   * @param org the Datadog organization to retrieve hosts from
+   * @param partitions the `key:value` tags to partition the query by
+   * @param executorService the executor to run the requests on
+   * @param stats the crawl cost to add to
+   * @param collectorSupplier creates the collector to add hosts to
+   * @return the collector with the hosts
+   */
+  private static <T extends HostCollector> T collect(
+      DatadogOrg org,
+      PartitionPlan partitions,
+      ExecutorService executorService,
+      CrawlStats stats,
+      Supplier<T> collectorSupplier)
+      throws IOException, ExecutionException, InterruptedException {
+    List<String> partitionTags = partitions.getTags();
+    List<String> unpartitioned = Collections.singletonList(org.getFilter());
+
+    if (partitionTags.isEmpty()) {
+      T allHosts = collectorSupplier.get();
+      crawl(org, unpartitioned, executorService, stats, allHosts);
+      return allHosts;
+    }
+
+    if (partitions.isDisabled()) {
+      // Check the hosts of the unpartitioned crawl so partitioning resumes once they're all covered
+      CheckedCollector<T> allHosts =
+          new CheckedCollector<>(collectorSupplier.get(), partitionTags);
+      crawl(org, unpartitioned, executorService, stats, allHosts);
+
+      if (allHosts.uncovered == 0) {
+        partitions.enable();
+        logger.info(
+            "Every host of "
+                + org.getName()
+                + " has a partition tag; partitioning is enabled again for the next crawl");
+      }
+
+      return allHosts.delegate;
+    }
+
+    // Count the hosts matching the unpartitioned filter while the partitions are crawled
+    Future<HttpResponse> totalFuture =
+        buildRequest(org, org.getFilter(), INITIAL_START_VALUE, 1, stats)
+            .executeAsync(executorService);
 
-    Set<DatadogHost> allHosts = new HashSet<>();
+    CheckedCollector<T> partitionHosts =
+        new CheckedCollector<>(collectorSupplier.get(), partitionTags);
+    long partitionMatching =
+        crawl(
+            org,
+            partitionFilters(org.getFilter(), partitionTags),
+            executorService,
+            stats,
+            partitionHosts);
+
+    long totalMatching = (long) parse(totalFuture.get(), stats).getTotalMatchingHosts();
 
     /*
-     *  Make one call to DD hosts endpoint to get the first HOST_COUNT_MAX group and to get
-     *  a total matching host count that will be used to calculate the amount of threads
-     *  necessary to retrieve the rest
+     * Compare the totals rather than the hosts crawled. The partition totals and the unpartitioned
+     * total are all counted by the first requests, so hosts added or removed while the pages are
+     * crawled can't make up for hosts that are missing from every partition. Hosts with several
+     * partition tags are counted once per partition. Hosts seen twice because the pages of a
+     * partition shifted while it was crawled are only counted once and aren't subtracted.
      */
-    HttpRequest request = buildRequest(filter, INITIAL_START_VALUE, appKey, apiKey);
+    long covered = partitionMatching - partitionHosts.overlap;
 
-    DatadogHosts hostsResponse = request.execute().parseAs(DatadogHosts.class);
+    if (covered >= totalMatching) {
+      return partitionHosts.delegate;
+    }
 
-    if (hostsResponse.getHostList().size() == 0) {
-      return allHosts;
+    logger.warn(
+        "Partitions of "
+            + org.getName()
+            + " cover "
+            + covered
+            + " of "
+            + totalMatching
+            + " hosts; retrieving hosts without partitions");
+
+    CheckedCollector<T> allHosts = new CheckedCollector<>(collectorSupplier.get(), partitionTags);
+    crawl(org, unpartitioned, executorService, stats, allHosts);
+
+    if (allHosts.uncovered > 0) {
+      partitions.disable();
+      logger.warn(
+          allHosts.uncovered
+              + " hosts of "
+              + org.getName()
+              + " have none of the partition tags; partitioning is disabled until every host has"
+              + " one");
     }
 
-    allHosts.addAll(hostsResponse.getHostList());
+    return allHosts.delegate;
+  }
 
-    double totalMatching = hostsResponse.getTotalMatchingHosts();
+  /**
+   * Builds the filter for each partition.
+   *
+   * @param filter the unpartitioned filter string; may be empty
+   * @param partitionTags the `key:value` tags to partition by
+   * @return a filter string per partition
+   */
+  static List<String> partitionFilters(String filter, List<String> partitionTags) {
+    List<String> filters = new ArrayList<>();
 
-    // Now that we have the first set of hosts, get the rest in parallel
-    if (totalMatching != 0 && totalMatching > HOST_COUNT_MAX) {
+    for (String tag : partitionTags) {
+      filters.add(filter == null || "".equals(filter.trim()) ? tag : filter.trim() + " " + tag);
+    }
 
-      int threads = (int) Math.floor(totalMatching / HOST_COUNT_MAX);
-      logger.debug("Attempting to run with " + threads + " threads.");
+    return filters;
+  }
 
-      ExecutorService executorService = Executors.newFixedThreadPool(threads);
+  /**
+   * Retrieve all pages of hosts for each of the given filters.
+   *
+   * @param org the Datadog organization to retrieve hosts from
+   * @param filters the filter strings to page through
+   * @param executorService the executor to run the requests on
+   * @param stats the crawl cost to add to
+   * @param allHosts the collector to add hosts to
+   * @return the sum of the hosts matching each filter, as counted by its first page
+   */
+  private static long crawl(
+      DatadogOrg org,
+      List<String> filters,
+      ExecutorService executorService,
+      CrawlStats stats,
+      HostCollector allHosts)
+      throws IOException, ExecutionException, InterruptedException {
 
-      List<Future<HttpResponse>> futureList = new ArrayList<>();
+    /*
+     *  Make one call per filter to DD hosts endpoint to get the first HOST_COUNT_MAX group and
+     *  to get a total matching host count that will be used to calculate the amount of requests
+     *  necessary to retrieve the rest
+     */
+    List<Future<HttpResponse>> firstPageList = new ArrayList<>();
 
-      int startAt = HOST_COUNT_MAX;
+    for (String filter : filters) {
+      firstPageList.add(
+          buildRequest(org, filter, INITIAL_START_VALUE, HOST_COUNT_MAX, stats)
+              .executeAsync(executorService));
+    }
 
-      for (int i = 0; i < threads; i++) {
-        HttpRequest hostRequest = buildRequest(filter, startAt, appKey, apiKey);
-        startAt += HOST_COUNT_MAX;
+    List<Future<HttpResponse>> futureList = new ArrayList<>();
+    long matching = 0;
 
-        Future<HttpResponse> responseFuture = hostRequest.executeAsync(executorService);
+    for (int i = 0; i < filters.size(); i++) {
+      DatadogHosts hostsResponse = parse(firstPageList.get(i).get(), stats);
 
-        futureList.add(responseFuture);
+      if (hostsResponse.getHostList().size() == 0) {
+        continue;
       }
 
-      /* Get the results from the futures and check for cancellations. The get method will
-       * block and should allow time for all requests to complete
-       */
-      logger.debug("Getting the results from the Futures");
-      for (Future<HttpResponse> result : futureList) {
-        // Will throw an exception if the timeout is reached and fail the import
-        // Node cache will be used instead
-        DatadogHosts hosts =
-            result.get(RESULT_TIMEOUT_VALUE, TimeUnit.SECONDS).parseAs(DatadogHosts.class);
-        if (hosts != null) {
-          allHosts.addAll(hosts.getHostList());
+      addHosts(allHosts, hostsResponse.getHostList());
+
+      double totalMatching = hostsResponse.getTotalMatchingHosts();
+      matching += (long) totalMatching;
+
+      // Now that we have the first set of hosts, get the rest in parallel
+      if (totalMatching != 0 && totalMatching > HOST_COUNT_MAX) {
+
+        int pages = (int) Math.floor(totalMatching / HOST_COUNT_MAX);
+        logger.debug("Attempting to get " + pages + " more pages for " + filters.get(i));
+
+        int startAt = HOST_COUNT_MAX;
+
+        for (int page = 0; page < pages; page++) {
+          HttpRequest hostRequest =
+              buildRequest(org, filters.get(i), startAt, HOST_COUNT_MAX, stats);
+          startAt += HOST_COUNT_MAX;
+
+          Future<HttpResponse> responseFuture = hostRequest.executeAsync(executorService);
+
+          futureList.add(responseFuture);
         }
       }
+    }
+
+    /* Get the results from the futures and check for cancellations. The get method will
+     * block and should allow time for all requests to complete
+     */
+    logger.debug("Getting the results from the Futures");
+    for (Future<HttpResponse> result : futureList) {
+      // A request that times out or runs out of retries fails the import
+      // Node cache will be used instead
+      DatadogHosts hosts = parse(result.get(), stats);
+      if (hosts != null) {
+        addHosts(allHosts, hosts.getHostList());
+      }
+    }
+
+    return matching;
+  }
+
+  /**
+   * Add hosts to the result, keeping the first host seen for each host id.
+   *
+   * @param allHosts the collector to add hosts to
+   * @param hosts the hosts to add
+   */
+  private static void addHosts(HostCollector allHosts, List<DatadogHost> hosts) {
+    for (DatadogHost host : hosts) {
+      allHosts.add(host);
+    }
+  }
+
+  /**
+   * Parse a hosts endpoint response, counting the bytes read.
+   *
+   * @param response the response
+   * @param stats the crawl cost to add to
+   * @return the parsed response; null if there is no response body
+   * @throws IOException if there is a problem reading the response
+   */
+  private static DatadogHosts parse(HttpResponse response, CrawlStats stats) throws IOException {
+    InputStream body = response.getContent();
 
-      executorService.shutdown();
+    if (body == null) {
+      stats.recordResponse(0);
+      return null;
     }
 
-    return allHosts;
+    CountingInputStream content = new CountingInputStream(body);
+
+    try {
+      return new JsonObjectParser(JSON_FACTORY)
+          .parseAndClose(content, response.getContentCharset(), DatadogHosts.class);
+    } finally {
+      stats.recordResponse(content.getCount());
+    }
   }
 
   /**
    * Make the request to the hosts endpoint.
    *
+   * @param org the Datadog organization
    * @param filter Datadog filter string
    * @param start the host index to start the request from
-   * @param appKey the Datadog application key
-   * @param apiKey the Datadog api key
+   * @param count the amount of hosts to request
+   * @param stats the crawl cost to record rate limited responses in
    * @return an HttpRequest
    * @throws IOException if there is a problem building the GET request
    */
-  private static HttpRequest buildRequest(String filter, int start, String appKey, String apiKey)
-      throws IOException {
+  private static HttpRequest buildRequest(
+      DatadogOrg org, String filter, int start, int count, CrawlStats stats) throws IOException {
     HttpRequestFactory requestFactory =
-        HTTP_TRANSPORT.createRequestFactory(
+        httpTransport.createRequestFactory(
             (HttpRequest request) -> {
               request.setParser(new JsonObjectParser(JSON_FACTORY));
             });
 
     HttpHeaders headers = new HttpHeaders();
     headers.setContentType("application/json");
-    headers.set("DD-APPLICATION-KEY", appKey);
-    headers.set("DD-API-KEY", apiKey);
+    headers.set("DD-APPLICATION-KEY", org.getAppKey());
+    headers.set("DD-API-KEY", org.getApiKey());
 
     ExponentialBackOff backoff =
         new ExponentialBackOff.Builder()
@@ -180,18 +424,102 @@ public class DatadogHostRequest {
             .setRandomizationFactor(RANDOMIZATION_FACTOR)
             .build();
 
+    // The handler only backs off on server errors by default, so rate limiting would fail the crawl
     HttpBackOffUnsuccessfulResponseHandler backOffHandler =
-        new HttpBackOffUnsuccessfulResponseHandler(backoff);
-
-    DatadogHostsUrl hostsUrl = new DatadogHostsUrl(HOSTS_URL);
+        new HttpBackOffUnsuccessfulResponseHandler(backoff)
+            .setBackOffRequired(
+                response ->
+                    response.getStatusCode() == STATUS_CODE_TOO_MANY_REQUESTS
+                        || response.getStatusCode() / 100 == 5);
+
+    // Count rate limited responses before backing off
+    HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler =
+        (request, response, supportsRetry) -> {
+          if (response.getStatusCode() == STATUS_CODE_TOO_MANY_REQUESTS) {
+            stats.recordRateLimited();
+          }
+          return backOffHandler.handleResponse(request, response, supportsRetry);
+        };
+
+    DatadogHostsUrl hostsUrl = new DatadogHostsUrl(org.getHostsUrl());
     hostsUrl.filter = filter;
-    hostsUrl.count = HOST_COUNT_MAX;
+    hostsUrl.count = count;
     hostsUrl.start = start;
 
     HttpRequest hostsRequest = requestFactory.buildGetRequest(hostsUrl);
     hostsRequest.setHeaders(headers);
-    hostsRequest.setUnsuccessfulResponseHandler(backOffHandler);
+    hostsRequest.setConnectTimeout(REQUEST_TIMEOUT_MILLIS);
+    hostsRequest.setReadTimeout(REQUEST_TIMEOUT_MILLIS);
+    hostsRequest.setUnsuccessfulResponseHandler(unsuccessfulResponseHandler);
 
     return hostsRequest;
   }
-}
\ No newline at end of file
+
+  /**
+   * Checks the hosts added to a collector against the partitions of a crawl.
+   *
+   * <p>Counts the extra partitions of hosts with several partition tags, and the hosts that have
+   * none of the partition tags.
+   */
+  private static final class CheckedCollector<T extends HostCollector> implements HostCollector {
+    private final T delegate;
+    private final Set<String> partitionTags = new HashSet<>();
+    private long overlap;
+    private long uncovered;
+
+    CheckedCollector(T delegate, List<String> partitionTags) {
+      this.delegate = delegate;
+      for (String tag : partitionTags) {
+        this.partitionTags.add(tag.toLowerCase(Locale.ROOT));
+      }
+    }
+
+    @Override
+    public boolean add(DatadogHost host) {
+      if (!delegate.add(host)) {
+        return false;
+      }
+
+      int partitionCount = countPartitionTags(host);
+
+      if (partitionCount == 0) {
+        uncovered++;
+      } else {
+        overlap += partitionCount - 1;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+
+    private int countPartitionTags(DatadogHost host) {
+      Set<String> hostPartitions = new HashSet<>();
+      for (String tag : host.getDatadogTags()) {
+        String lowerTag = tag.toLowerCase(Locale.ROOT);
+        if (partitionTags.contains(lowerTag)) {
+          hostPartitions.add(lowerTag);
+        }
+      }
+      return hostPartitions.size();
+    }
+  }
+
+  /** Collects hosts as objects keyed by host id. */
+  private static final class HostsById implements HostCollector {
+    private final Map<Long, DatadogHost> hosts = new HashMap<>();
+
+    @Override
+    public boolean add(DatadogHost host) {
+      return hosts.putIfAbsent(host.getId(), host) == null;
+    }
+
+    @Override
+    public int size() {
+      return hosts.size();
+    }
+  }
+}
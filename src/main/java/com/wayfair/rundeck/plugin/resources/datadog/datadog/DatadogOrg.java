@@ -0,0 +1,123 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+/**
+ * A Datadog organization to retrieve hosts from.
+ *
+ * <p>An organization is identified by a name that is used as the node origin, the Datadog site it
+ * lives on (Ex. `datadoghq.com`, `datadoghq.eu`), its key pair and the filter string to apply to
+ * its hosts.
+ */
+public final class DatadogOrg {
+
+  /** The default Datadog site. */
+  public static final String DEFAULT_SITE = "datadoghq.com";
+
+  // Separator used between the fields of an organization entry
+  private static final String ENTRY_SEPARATOR = "\\|";
+
+  private final String name;
+  private final String site;
+  private final String apiKey;
+  private final String appKey;
+  private final String filter;
+
+  /**
+   * Constructs a DatadogOrg.
+   *
+   * @param name the organization name used as the node origin
+   * @param site the Datadog site; defaults to `datadoghq.com` if empty
+   * @param apiKey the Datadog API key
+   * @param appKey the Datadog APP key
+   * @param filter the filter string for hosts
+   */
+  public DatadogOrg(String name, String site, String apiKey, String appKey, String filter) {
+    this.site = site == null || "".equals(site.trim()) ? DEFAULT_SITE : site.trim();
+    this.name = name == null || "".equals(name.trim()) ? this.site : name.trim();
+    this.apiKey = apiKey;
+    this.appKey = appKey;
+    this.filter = filter;
+  }
+
+  /**
+   * Parses an organization entry in the `name|site|apiKey|appKey|filter` format.
+   *
+   * <p>The filter is optional and may contain spaces.
+   *
+   * @param entry the organization entry
+   * @return a DatadogOrg
+   * @throws IllegalArgumentException if the entry is missing required fields
+   */
+  public static DatadogOrg parse(String entry) {
+    String[] fields = entry.trim().split(ENTRY_SEPARATOR, 5);
+
+    if (fields.length < 4) {
+      throw new IllegalArgumentException(
+          "Expected `name|site|apiKey|appKey|filter` but got " + fields.length + " fields");
+    }
+
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = fields[i].trim();
+    }
+
+    if ("".equals(fields[2]) || "".equals(fields[3])) {
+      throw new IllegalArgumentException("Missing Datadog key for organization: " + fields[0]);
+    }
+
+    return new DatadogOrg(
+        fields[0], fields[1], fields[2], fields[3], fields.length == 5 ? fields[4] : null);
+  }
+
+  /**
+   * Get the organization name.
+   *
+   * @return the organization name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Get the Datadog site.
+   *
+   * @return the Datadog site
+   */
+  public String getSite() {
+    return site;
+  }
+
+  /**
+   * Get the Datadog API key.
+   *
+   * @return the API key
+   */
+  public String getApiKey() {
+    return apiKey;
+  }
+
+  /**
+   * Get the Datadog APP key.
+   *
+   * @return the APP key
+   */
+  public String getAppKey() {
+    return appKey;
+  }
+
+  /**
+   * Get the filter string.
+   *
+   * @return the filter string
+   */
+  public String getFilter() {
+    return filter;
+  }
+
+  /**
+   * Get the `hosts` endpoint for the organization's site.
+   *
+   * @return the hosts endpoint URL
+   */
+  String getHostsUrl() {
+    return "https://api." + site + "/api/v1/hosts";
+  }
+}
@@ -0,0 +1,20 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+/** HostCollector receives the hosts of a crawl page by page. */
+interface HostCollector {
+
+  /**
+   * Add a host, ignoring hosts whose id was already added.
+   *
+   * @param host the Datadog host
+   * @return true if the host was added; false if its id was already added
+   */
+  boolean add(DatadogHost host);
+
+  /**
+   * Get the count of hosts added.
+   *
+   * @return the host count
+   */
+  int size();
+}
@@ -0,0 +1,53 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+import java.util.List;
+
+/**
+ * PartitionPlan holds the `key:value` tags an organization's host query is partitioned by.
+ *
+ * <p>Partitioning is disabled once a crawl finds hosts matching the filter that have none of the
+ * partition tags, since the next crawls would have to fall back to an unpartitioned crawl anyway.
+ * The unpartitioned crawls keep checking the hosts, and partitioning is enabled again after a
+ * crawl where every host has a partition tag, such as once new hosts have their integration tags.
+ */
+public final class PartitionPlan {
+  private final List<String> tags;
+  private volatile boolean disabled;
+
+  /**
+   * Constructs a PartitionPlan.
+   *
+   * @param tags the `key:value` tags to partition the query by; may be empty
+   */
+  public PartitionPlan(List<String> tags) {
+    this.tags = tags;
+  }
+
+  /**
+   * Get the tags to partition the query by, whether or not partitioning is disabled.
+   *
+   * @return the partition tags; empty if the query isn't partitioned
+   */
+  public List<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * Check if partitioning is disabled after a crawl found hosts outside of the partitions.
+   *
+   * @return true if partitioning is disabled; false otherwise
+   */
+  public boolean isDisabled() {
+    return disabled;
+  }
+
+  /** Disable partitioning until a crawl finds every host in a partition. */
+  void disable() {
+    disabled = true;
+  }
+
+  /** Enable partitioning again after a crawl found every host in a partition. */
+  void enable() {
+    disabled = false;
+  }
+}
@@ -0,0 +1,65 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StringDictionary assigns a small int code to each distinct string.
+ *
+ * <p>Used to dictionary-encode the tags, OS details and sources repeated across the hosts of a
+ * {@link CompactHostStore}. A dictionary can be shared by several stores that are filled
+ * concurrently.
+ */
+public final class StringDictionary {
+
+  /** Code used for null values. */
+  static final int NULL_CODE = -1;
+
+  private final Map<String, Integer> codes = new HashMap<>();
+  private final List<String> values = new ArrayList<>();
+
+  /**
+   * Get the code for a string, adding it to the dictionary if needed.
+   *
+   * @param value the string; may be null
+   * @return the code of the string
+   */
+  public synchronized int encode(String value) {
+    if (value == null) {
+      return NULL_CODE;
+    }
+
+    Integer code = codes.get(value);
+
+    if (code == null) {
+      code = values.size();
+      values.add(value);
+      codes.put(value, code);
+    }
+
+    return code;
+  }
+
+  /**
+   * Copy the strings, indexed by code.
+   *
+   * <p>Reading the copy doesn't need the dictionary lock, so it is used to decode once the codes of
+   * a store are all encoded.
+   *
+   * @return the strings added so far
+   */
+  public synchronized String[] toArray() {
+    return values.toArray(new String[0]);
+  }
+
+  /**
+   * Get the count of distinct strings.
+   *
+   * @return the dictionary size
+   */
+  public synchronized int size() {
+    return values.size();
+  }
+}
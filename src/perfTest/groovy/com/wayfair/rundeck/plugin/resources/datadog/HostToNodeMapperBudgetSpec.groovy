@@ -0,0 +1,199 @@
+package com.wayfair.rundeck.plugin.resources.datadog
+
+import com.google.api.client.json.jackson2.JacksonFactory
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CompactHostStore
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHost
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHosts
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogMetaData
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.StringDictionary
+import groovy.json.JsonOutput
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryMXBean
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Fails when mapping or page parsing go over their allocation or latency budget on a fixed
+ * synthetic fleet. Allocations are measured per thread through com.sun.management.ThreadMXBean and
+ * retained sizes as the heap used after a full collection.
+ *
+ * <p>The default budgets are provisional ceilings that haven't been calibrated against this tier's
+ * classpath yet. Run the tier, then set each allocation budget about 20% over the value it reports
+ * so a change that adds a few objects per host fails. Latency budgets leave more room since they
+ * depend on the hardware.
+ */
+class HostToNodeMapperBudgetSpec extends Specification {
+    // Datadog's 'hosts' endpoint returns at MAX 1000 hosts per page
+    private static final int PAGE_SIZE = 1000
+
+    // Runs before measuring so class loading and JIT compilation don't count against the budget
+    private static final int WARMUP_RUNS = 3
+
+    @Shared int hostCount = budget('perf.hosts', 10000)
+    @Shared int tagsPerHost = budget('perf.tagsPerHost', 30)
+    @Shared List<DatadogHost> fleet = mkFleet(hostCount, tagsPerHost)
+
+    // Keeps the result of a retained size measurement reachable until the heap is measured
+    private static volatile Object retained
+
+    def "mapping hosts stays within budget"() {
+        given:
+        TagProjection projection = new TagProjection(['role', 'env'] as Set, ['availability-zone': 'zone'], false)
+
+        when:
+        Measurement measurement = measure { HostToNodeMapper.mapHosts(fleet, projection, 'us') }
+
+        then:
+        measurement.bytes / hostCount <= budget('perf.mapBytesPerHost', 6000)
+        measurement.millis <= budget('perf.mapMillis', 300)
+    }
+
+    def "mapping hosts from a compact host store stays within budget"() {
+        given:
+        TagProjection projection = new TagProjection(['role', 'env'] as Set, ['availability-zone': 'zone'], false)
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        fleet.each { builder.add(it) }
+        CompactHostStore store = builder.build(false)
+
+        when:
+        Measurement measurement = measure { HostToNodeMapper.mapHosts(store, projection, 'us') }
+
+        then:
+        measurement.bytes / hostCount <= budget('perf.compactMapBytesPerHost', 4300)
+        measurement.millis <= budget('perf.compactMapMillis', 300)
+    }
+
+    def "parsing pages stays within budget"() {
+        given:
+        JacksonFactory jsonFactory = new JacksonFactory()
+        List<String> pages = fleet.collate(PAGE_SIZE).collect { mkPage(it) }
+
+        when:
+        Measurement measurement = measure {
+            pages.each { jsonFactory.fromString(it, DatadogHosts) }
+        }
+
+        then:
+        measurement.bytes / hostCount <= budget('perf.parseBytesPerHost', 7300)
+        measurement.millis <= budget('perf.parseMillis', 300)
+    }
+
+    def "compact host store retains a fraction of the host objects"() {
+        given:
+        JacksonFactory jsonFactory = new JacksonFactory()
+        List<String> pages = fleet.collate(PAGE_SIZE).collect { mkPage(it) }
+
+        when:
+        long objectBytes = retainedBytes {
+            pages.collectMany { jsonFactory.fromString(it, DatadogHosts).getHostList() }
+        }
+        long compactBytes = retainedBytes {
+            CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+            pages.each { page ->
+                jsonFactory.fromString(page, DatadogHosts).getHostList().each { builder.add(it) }
+            }
+            builder.build(false)
+        }
+
+        then:
+        objectBytes / compactBytes >= budget('perf.compactRetainedRatio', 10)
+    }
+
+    /**
+     * Measures the heap retained by the result of the work.
+     */
+    private static long retainedBytes(Closure work) {
+        long before = usedHeap()
+        retained = work()
+        long after = usedHeap()
+        retained = null
+        return after - before
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean()
+        3.times { System.gc() }
+        return memoryBean.getHeapMemoryUsage().getUsed()
+    }
+
+    /**
+     * Measures the bytes allocated by the current thread and the fastest elapsed time of the work
+     * after warming it up.
+     */
+    private static Measurement measure(Closure work) {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+        long threadId = Thread.currentThread().getId()
+        long millis = Long.MAX_VALUE
+        long bytes = 0
+
+        WARMUP_RUNS.times { work() }
+
+        3.times {
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId)
+            long start = System.nanoTime()
+            work()
+            millis = Math.min(millis, (System.nanoTime() - start).intdiv(1000000L) as long)
+            bytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+        }
+
+        return new Measurement(bytes: bytes, millis: millis)
+    }
+
+    private static int budget(String name, int defaultValue) {
+        return Integer.parseInt(System.getProperty(name, defaultValue.toString()))
+    }
+
+    private static List<DatadogHost> mkFleet(int hostCount, int tagsPerHost) {
+        return (0..<hostCount).collect { id ->
+            List<String> tags = ["role:role${id % 20}", "env:env${id % 3}", "availability-zone:az${id % 6}",
+                                 "operatingsystem:${id % 10 == 0 ? 'windows' : 'centos'}"]
+            (tags.size()..<tagsPerHost).each { tags << "tag${it}:value${id % 50}".toString() }
+
+            DatadogMetaData metaData = new DatadogMetaData()
+            metaData.setOperatingSystemPlatform(id % 10 == 0 ? 'windows' : 'linux')
+            metaData.setUnixVersionList(['Centos', '7.9.2009', 'Core'])
+            metaData.setWindowsVersionList(['Windows Server 2019 Datacenter', '10.0.17763 Build 17763', ''])
+
+            DatadogHost host = new DatadogHost()
+            host.setHostName("host${id}.example.com")
+            host.setId(id)
+            host.setMuted(id % 7 == 0)
+            host.setSources(['agent', 'aws'])
+            host.setTags(['Datadog': tags*.toString(), 'Amazon Web Services': tags.take(4)*.toString()])
+            host.setMetaData(metaData)
+            return host
+        }
+    }
+
+    private static String mkPage(List<DatadogHost> hosts) {
+        return JsonOutput.toJson([
+                total_matching: hosts.size(),
+                host_list     : hosts.collect { host ->
+                    [
+                            host_name     : host.getHostName(),
+                            id            : host.getId(),
+                            is_muted      : host.isMuted(),
+                            sources       : host.getSources(),
+                            tags_by_source: host.get('tags_by_source'),
+                            meta          : [
+                                    platform: host.getMetaData().getOperatingSystemPlatform(),
+                                    nixV    : host.getMetaData().getUnixVersionList(),
+                                    winV    : host.getMetaData().getWindowsVersionList()
+                            ]
+                    ]
+                }
+        ])
+    }
+
+    private static class Measurement {
+        long bytes
+        long millis
+
+        // Shown in the condition output when a budget is exceeded
+        @Override
+        String toString() {
+            return "${bytes} bytes in ${millis} ms"
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.wayfair.rundeck.plugin.resources.datadog
+
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CrawlStats
+import java.time.Clock
+import spock.lang.Specification
+
+class AdaptiveRefreshSchedulerSpec extends Specification {
+    private static final long MIN_INTERVAL = 60000
+    private static final long MAX_INTERVAL = 600000
+
+    Clock clock = Mock(Clock)
+    AdaptiveRefreshScheduler scheduler = new AdaptiveRefreshScheduler(MIN_INTERVAL, MAX_INTERVAL, clock)
+
+    def setup() {
+        clock.millis() >> 0
+        // The first refresh reports every node as added and only sets the baseline
+        scheduler.recordRefresh(mkChanges(1000, 0), 1000, 1000, new CrawlStats())
+    }
+
+    def "quiet fleet refreshed less often up to the max interval"() {
+        when:
+        10.times { scheduler.recordRefresh(mkChanges(0, 0), 1000, 1000, new CrawlStats()) }
+
+        then:
+        scheduler.getIntervalMillis() == MAX_INTERVAL
+    }
+
+    def "churning fleet refreshed more often down to the min interval"() {
+        given:
+        3.times { scheduler.recordRefresh(mkChanges(0, 0), 1000, 1000, new CrawlStats()) }
+
+        when:
+        10.times { scheduler.recordRefresh(mkChanges(10, 5), 1000, 1000, new CrawlStats()) }
+
+        then:
+        scheduler.getIntervalMillis() == MIN_INTERVAL
+    }
+
+    def "rate limited crawls back off"() {
+        given:
+        CrawlStats stats = new CrawlStats()
+        stats.recordRateLimited()
+
+        when:
+        scheduler.recordRefresh(mkChanges(10, 5), 1000, 1000, stats)
+
+        then:
+        scheduler.getIntervalMillis() == MIN_INTERVAL * 2
+    }
+
+    def "interval kept above the crawl cost"() {
+        when:
+        scheduler.recordRefresh(mkChanges(10, 5), 1000, 30000, new CrawlStats())
+
+        then:
+        scheduler.getIntervalMillis() == 120000
+    }
+
+    def "refresh due once the interval has passed"() {
+        given:
+        Clock later = Mock(Clock)
+        AdaptiveRefreshScheduler laterScheduler = new AdaptiveRefreshScheduler(MIN_INTERVAL, MAX_INTERVAL, later)
+
+        when:
+        boolean dueInitially = laterScheduler.isRefreshDue()
+        laterScheduler.recordRefresh(mkChanges(0, 0), 1000, 1000, new CrawlStats())
+
+        then:
+        later.millis() >>> [0, MIN_INTERVAL - 1, MIN_INTERVAL]
+        dueInitially
+        !laterScheduler.isRefreshDue()
+        laterScheduler.isRefreshDue()
+    }
+
+    private static NodeChanges mkChanges(int added, int removed) {
+        return new NodeChanges(
+                (0..<added).collect { "added${it}".toString() },
+                (0..<removed).collect { "removed${it}".toString() },
+                [])
+    }
+}
@@ -0,0 +1,215 @@
+package com.wayfair.rundeck.plugin.resources.datadog
+
+import com.dtolabs.rundeck.core.common.INodeSet
+import com.dtolabs.rundeck.core.common.NodeEntryImpl
+import com.dtolabs.rundeck.core.common.NodeSetImpl
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+import spock.lang.Specification
+
+class ClusterCrawlCoordinatorSpec extends Specification {
+    private static final long LEASE_MILLIS = 300000
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = 60000
+    private static final String SOURCE_KEY = ClusterCrawlCoordinator.sourceKey(['us', 'datadoghq.com', 'env:prod'])
+
+    Path directory = Files.createTempDirectory('datadog-cluster')
+
+    def "only one member crawls while the snapshot is fresh"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        List<ClusterCrawlCoordinator> members = (0..<3).collect { mkCoordinator(0) }
+
+        when:
+        List<INodeSet> results = members.collect { it.getNodes(crawler) }
+
+        then:
+        crawls == 1
+        results.every { it.getNodeNames() as Set == ['host0.example.com', 'host1.example.com'] as Set }
+        results[2].getNode('host0.example.com').getTags() == ['role:web'] as Set
+        results[2].getNode('host0.example.com').getAttributes().get('datadogOrg') == 'us'
+    }
+
+    def "stale snapshot crawled again"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        mkCoordinator(0).getNodes(crawler)
+
+        when:
+        mkCoordinator(MAX_SNAPSHOT_AGE_MILLIS + 1).getNodes(crawler)
+
+        then:
+        crawls == 2
+    }
+
+    def "lease held by another member until it expires"() {
+        given:
+        ClusterCrawlCoordinator holder = mkCoordinator(0)
+
+        expect:
+        holder.tryAcquireLease()
+        holder.tryAcquireLease()
+        !mkCoordinator(0).tryAcquireLease()
+        mkCoordinator(LEASE_MILLIS + 1).tryAcquireLease()
+    }
+
+    def "released lease taken by another member"() {
+        given:
+        ClusterCrawlCoordinator holder = mkCoordinator(0)
+        holder.tryAcquireLease()
+
+        when:
+        holder.releaseLease()
+
+        then:
+        mkCoordinator(0).tryAcquireLease()
+    }
+
+    def "member without the lease uses a stale snapshot"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        mkCoordinator(0).getNodes(crawler)
+        mkCoordinator(MAX_SNAPSHOT_AGE_MILLIS + 1).tryAcquireLease()
+
+        when:
+        INodeSet nodes = mkCoordinator(MAX_SNAPSHOT_AGE_MILLIS + 1).getNodes(crawler)
+
+        then:
+        crawls == 1
+        nodes.getNodes().size() == 2
+    }
+
+    def "member without the lease waits for the holder's snapshot"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        mkCoordinator(0).tryAcquireLease()
+        Thread writer = Thread.start {
+            sleep(200)
+            NodeSnapshot.write(snapshotPath(), mkNodeSet(), 1000000)
+        }
+
+        when:
+        INodeSet nodes = mkCoordinator(0).getNodes(crawler)
+        writer.join()
+
+        then:
+        crawls == 0
+        nodes.getNodes().size() == 2
+    }
+
+    def "member waiting for a snapshot takes a released lease and crawls"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        ClusterCrawlCoordinator holder = mkCoordinator(0)
+        holder.tryAcquireLease()
+        // The holder's crawl fails, so it releases the lease without a snapshot
+        Thread releaser = Thread.start {
+            sleep(200)
+            holder.releaseLease()
+        }
+
+        when:
+        INodeSet nodes = mkCoordinator(0).getNodes(crawler)
+        releaser.join()
+
+        then:
+        crawls == 1
+        nodes.getNodes().size() == 2
+        Files.exists(snapshotPath())
+    }
+
+    def "member crawls itself when no snapshot appears within the lease duration"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        mkCoordinator(0, 1000).tryAcquireLease()
+
+        when:
+        INodeSet nodes = mkCoordinator(0, 1000).getNodes(crawler)
+
+        then:
+        crawls == 1
+        nodes.getNodes().size() == 2
+        !Files.exists(snapshotPath())
+    }
+
+    def "sources configured differently don't share snapshots"() {
+        given:
+        int crawls = 0
+        ClusterCrawlCoordinator.Crawler crawler = { crawls++; mkNodeSet() } as ClusterCrawlCoordinator.Crawler
+        String stagingKey = ClusterCrawlCoordinator.sourceKey(['us', 'datadoghq.com', 'env:staging'])
+        mkCoordinator(0).getNodes(crawler)
+
+        when:
+        mkCoordinator(0, LEASE_MILLIS, stagingKey).getNodes(crawler)
+        mkCoordinator(0).getNodes(crawler)
+
+        then:
+        // The staging source crawled for itself, and the prod source used its own snapshot
+        crawls == 2
+        Files.exists(directory.resolve(stagingKey).resolve(ClusterCrawlCoordinator.SNAPSHOT_FILE))
+        Files.exists(snapshotPath())
+    }
+
+    def "source key stable for the same settings"() {
+        expect:
+        ClusterCrawlCoordinator.sourceKey(['us', 'env:prod']) == ClusterCrawlCoordinator.sourceKey(['us', 'env:prod'])
+        ClusterCrawlCoordinator.sourceKey(['us', 'env:prod']) != ClusterCrawlCoordinator.sourceKey(['us', 'env:staging'])
+        ClusterCrawlCoordinator.sourceKey(['a\n1:b']) != ClusterCrawlCoordinator.sourceKey(['a', 'b'])
+        ClusterCrawlCoordinator.sourceKey([null]) == ClusterCrawlCoordinator.sourceKey([''])
+    }
+
+    def "snapshot holds strings longer than 65535 bytes"() {
+        given:
+        String sources = 'agent,' * 20000
+        NodeSetImpl nodeSet = mkNodeSet()
+        nodeSet.getNode('host0.example.com').setAttribute('sources', sources)
+        Path path = Files.createDirectories(directory.resolve(SOURCE_KEY)).resolve(ClusterCrawlCoordinator.SNAPSHOT_FILE)
+
+        when:
+        NodeSnapshot.write(path, nodeSet, 1000000)
+        NodeSnapshot snapshot = NodeSnapshot.read(path)
+
+        then:
+        snapshot.getCreatedAt() == 1000000
+        snapshot.getNodes().getNode('host0.example.com').getAttributes().get('sources') == sources
+    }
+
+    private ClusterCrawlCoordinator mkCoordinator(long offsetMillis) {
+        return mkCoordinator(offsetMillis, LEASE_MILLIS)
+    }
+
+    private ClusterCrawlCoordinator mkCoordinator(long offsetMillis, long leaseMillis) {
+        return mkCoordinator(offsetMillis, leaseMillis, SOURCE_KEY)
+    }
+
+    private ClusterCrawlCoordinator mkCoordinator(long offsetMillis, long leaseMillis, String sourceKey) {
+        Clock clock = Clock.fixed(Instant.ofEpochMilli(1000000 + offsetMillis), ZoneOffset.UTC)
+        return new ClusterCrawlCoordinator(directory, sourceKey, leaseMillis, MAX_SNAPSHOT_AGE_MILLIS, clock)
+    }
+
+    private Path snapshotPath() {
+        return directory.resolve(SOURCE_KEY).resolve(ClusterCrawlCoordinator.SNAPSHOT_FILE)
+    }
+
+    private static NodeSetImpl mkNodeSet() {
+        NodeSetImpl nodeSet = new NodeSetImpl()
+        (0..<2).each { id ->
+            NodeEntryImpl node = new NodeEntryImpl()
+            node.setNodename("host${id}.example.com".toString())
+            node.setHostname("host${id}.example.com".toString())
+            node.setOsFamily('unix')
+            node.setAttribute('datadogOrg', 'us')
+            node.setTags(['role:web'] as Set)
+            nodeSet.putNode(node)
+        }
+        return nodeSet
+    }
+}
@@ -0,0 +1,43 @@
+package com.wayfair.rundeck.plugin.resources.datadog
+
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException
+import com.dtolabs.rundeck.core.resources.ResourceModelSource
+import spock.lang.Specification
+
+class DatadogResourceModelSourceFactorySpec extends Specification {
+    DatadogResourceModelSourceFactory factory = new DatadogResourceModelSourceFactory()
+
+    def "projection rule on a default attribute fails the source unless default attributes are dropped"() {
+        given:
+        Properties properties = mkProperties()
+        properties.setProperty(DatadogResourceModelSourceFactory.ATTRIBUTE_PROJECTION, 'role,env=sources')
+
+        when:
+        factory.createResourceModelSource(properties)
+
+        then:
+        ConfigurationException ex = thrown(ConfigurationException)
+        ex.getMessage().contains('sources')
+    }
+
+    def "projection rule on a default attribute accepted when default attributes are dropped"() {
+        given:
+        Properties properties = mkProperties()
+        properties.setProperty(DatadogResourceModelSourceFactory.ATTRIBUTE_PROJECTION, 'role,env=sources')
+        properties.setProperty(DatadogResourceModelSourceFactory.DROP_DEFAULT_ATTRIBUTES, 'true')
+
+        when:
+        ResourceModelSource source = factory.createResourceModelSource(properties)
+
+        then:
+        source != null
+    }
+
+    private static Properties mkProperties() {
+        Properties properties = new Properties()
+        properties.setProperty(DatadogResourceModelSourceFactory.DATADOG_API_KEY, 'apiKey')
+        properties.setProperty(DatadogResourceModelSourceFactory.DATADOG_APP_KEY, 'appKey')
+        properties.setProperty(DatadogResourceModelSourceFactory.FILTER_STRING, 'env:prod')
+        return properties
+    }
+}
@@ -1,8 +1,10 @@
 package com.wayfair.rundeck.plugin.resources.datadog
 
 import com.dtolabs.rundeck.core.common.NodeSetImpl
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.CompactHostStore
 import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogHost
 import com.wayfair.rundeck.plugin.resources.datadog.datadog.DatadogMetaData
+import com.wayfair.rundeck.plugin.resources.datadog.datadog.StringDictionary
 import spock.lang.Specification
 
 class HostToNodeMapperSpec extends Specification {
@@ -83,6 +85,100 @@ class HostToNodeMapperSpec extends Specification {
         nodeSet.getNodes().size() == 0
     }
 
+    def "nodes are tagged with their datadog org"() {
+        given:
+        Set<DatadogHost> hostList = [mkDatadogHost(0)]
+
+        NodeSetImpl nodeSet = HostToNodeMapper.mapHosts(hostList, TagProjection.tagsOnly(new HashSet<String>()), 'us')
+
+        expect:
+        nodeSet.getNode("host0.example.com").getAttributes().get(HostToNodeMapper.ORIGIN_ATTRIBUTE) == 'us'
+    }
+
+    def "first datadog org wins on conflicting nodenames"() {
+        given:
+        NodeSetImpl nodeSet = new NodeSetImpl()
+        HostToNodeMapper.mergeNodes(nodeSet,
+                HostToNodeMapper.mapHosts([mkDatadogHost(0), mkDatadogHost(1)] as Set, TagProjection.tagsOnly(new HashSet<String>()), 'us'))
+        HostToNodeMapper.mergeNodes(nodeSet,
+                HostToNodeMapper.mapHosts([mkDatadogHost(1), mkDatadogHost(2)] as Set, TagProjection.tagsOnly(new HashSet<String>()), 'eu'))
+
+        expect:
+        nodeSet.getNodes().size() == 3
+        nodeSet.getNode("host1.example.com").getAttributes().get(HostToNodeMapper.ORIGIN_ATTRIBUTE) == 'us'
+        nodeSet.getNode("host2.example.com").getAttributes().get(HostToNodeMapper.ORIGIN_ATTRIBUTE) == 'eu'
+    }
+
+    def "compact host store maps to the same nodes"() {
+        given:
+        Set<DatadogHost> hostList = [mkDatadogHost(0), mkDatadogHost(1), mkDatadogHost(2, false), mkDatadogHost(3, false)]
+        Set<String> tags = new HashSet<>()
+        tags.add('operatingsystem')
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        hostList.each { builder.add(it) }
+
+        NodeSetImpl expected = HostToNodeMapper.mapHosts(hostList, TagProjection.tagsOnly(tags), 'us')
+        NodeSetImpl nodeSet = HostToNodeMapper.mapHosts(builder.build(true), TagProjection.tagsOnly(tags), 'us')
+
+        expect:
+        nodeSet.getNodeNames() as Set == expected.getNodeNames() as Set
+        nodeSet.getNodes().every { node ->
+            node.getAttributes() == expected.getNode(node.getNodename()).getAttributes() &&
+                    node.getTags() == expected.getNode(node.getNodename()).getTags()
+        }
+    }
+
+    def "datadog tags projected to node attributes"() {
+        given:
+        DatadogHost host = mkDatadogHost(0)
+        host.setTags(Collections.singletonMap('Datadog Agent',
+                ['operatingsystem:centos', 'role:web', 'role:api', 'availability-zone:us-east-1a']))
+        TagProjection projection = new TagProjection(
+                ['operatingsystem'] as Set, TagProjection.parseRules('role, availability-zone=zone', false), false)
+
+        NodeSetImpl nodeSet = HostToNodeMapper.mapHosts([host] as Set, projection, null)
+
+        expect:
+        nodeSet.getNode("host0.example.com").getAttributes().get('role') == 'api,web'
+        nodeSet.getNode("host0.example.com").getAttributes().get('zone') == 'us-east-1a'
+        nodeSet.getNode("host0.example.com").getTags() == ['operatingsystem:centos'] as Set
+    }
+
+    def "default attributes dropped"() {
+        given:
+        TagProjection projection = new TagProjection(new HashSet<String>(), [:], true)
+
+        NodeSetImpl nodeSet = HostToNodeMapper.mapHosts([mkDatadogHost(0)] as Set, projection, null)
+
+        expect:
+        !nodeSet.getNode("host0.example.com").getAttributes().containsKey('isMuted')
+        !nodeSet.getNode("host0.example.com").getAttributes().containsKey('sources')
+    }
+
+    def "invalid projection rules rejected"() {
+        when:
+        TagProjection.parseRules(rules, false)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        rules << ['role=', '=role', 'role=a=b', 'hostname', 'role=osFamily', 'env=sources', 'isMuted']
+    }
+
+    def "default attributes projected only when dropped"() {
+        given:
+        DatadogHost host = mkDatadogHost(0)
+        host.setTags(Collections.singletonMap('Datadog Agent', ['operatingsystem:centos', 'env:prod']))
+        TagProjection projection = new TagProjection(
+                new HashSet<String>(), TagProjection.parseRules('env=sources', true), true)
+
+        NodeSetImpl nodeSet = HostToNodeMapper.mapHosts([host] as Set, projection, null)
+
+        expect:
+        nodeSet.getNode("host0.example.com").getAttributes().get('sources') == 'prod'
+    }
+
     private static DatadogHost mkDatadogHost(id, withMetaData = true) {
         DatadogHost datadogHost = new DatadogHost()
         datadogHost.setHostName("host${id}.example.com")
@@ -0,0 +1,126 @@
+package com.wayfair.rundeck.plugin.resources.datadog
+
+import com.dtolabs.rundeck.core.common.NodeEntryImpl
+import com.dtolabs.rundeck.core.common.NodeSetImpl
+import java.nio.file.Files
+import java.nio.file.Path
+import spock.lang.Specification
+
+class NodeChangeFeedSpec extends Specification {
+    def "first snapshot reports every node as added"() {
+        given:
+        NodeChanges changes = NodeChangeFeed.diff(null, mkNodeSet(['a': 'x', 'b': 'x']))
+
+        expect:
+        changes.getAdded().sort(false) == ['a', 'b']
+        changes.getRemoved().isEmpty()
+        changes.getChanged().isEmpty()
+    }
+
+    def "added, removed and changed nodes reported"() {
+        given:
+        NodeChanges changes = NodeChangeFeed.diff(
+                mkNodeSet(['a': 'x', 'b': 'x', 'c': 'x']),
+                mkNodeSet(['b': 'x', 'c': 'y', 'd': 'x']))
+
+        expect:
+        changes.getAdded() == ['d']
+        changes.getRemoved() == ['a']
+        changes.getChanged() == ['c']
+    }
+
+    def "identical snapshots have no changes"() {
+        given:
+        NodeChanges changes = NodeChangeFeed.diff(mkNodeSet(['a': 'x']), mkNodeSet(['a': 'x']))
+
+        expect:
+        changes.isEmpty()
+    }
+
+    def "listeners notified and counters updated"() {
+        given:
+        NodeChangeFeed feed = new NodeChangeFeed()
+        List<NodeChanges> received = []
+        feed.addListener({ received << it } as NodeChangeListener)
+
+        when:
+        feed.update(mkNodeSet(['a': 'x', 'b': 'x']))
+        feed.update(mkNodeSet(['b': 'y']))
+
+        then:
+        received.size() == 2
+        feed.getRefreshCount() == 2
+        feed.getAddedCount() == 2
+        feed.getRemovedCount() == 1
+        feed.getChangedCount() == 1
+    }
+
+    def "configured listeners registered from service providers"() {
+        given:
+        NodeChangeFeed feed = new NodeChangeFeed()
+        RecordingListener.received.clear()
+
+        when:
+        feed.registerListeners([RecordingListener.name], mkServiceClassLoader())
+        feed.update(mkNodeSet(['a': 'x']))
+
+        then:
+        RecordingListener.received.size() == 1
+        RecordingListener.received[0].getAdded() == ['a']
+    }
+
+    def "service providers that aren't configured not registered"() {
+        given:
+        NodeChangeFeed feed = new NodeChangeFeed()
+        RecordingListener.received.clear()
+
+        when:
+        feed.registerListeners([], mkServiceClassLoader())
+        feed.update(mkNodeSet(['a': 'x']))
+
+        then:
+        RecordingListener.received.isEmpty()
+    }
+
+    def "configured listener without a service provider rejected"() {
+        given:
+        NodeChangeFeed feed = new NodeChangeFeed()
+
+        when:
+        feed.registerListeners(['com.example.MissingListener'], mkServiceClassLoader())
+
+        then:
+        IllegalArgumentException ex = thrown(IllegalArgumentException)
+        ex.getMessage().contains('com.example.MissingListener')
+    }
+
+    /** A node change listener registered as a service provider by the spec. */
+    static class RecordingListener implements NodeChangeListener {
+        static List<NodeChanges> received = Collections.synchronizedList([])
+
+        @Override
+        void onNodesChanged(NodeChanges changes) {
+            received << changes
+        }
+    }
+
+    private ClassLoader mkServiceClassLoader() {
+        Path root = Files.createTempDirectory('node-change-listeners')
+        Path services = root.resolve('META-INF/services')
+        Files.createDirectories(services)
+        services.resolve(NodeChangeListener.name).toFile().text = RecordingListener.name + '\n'
+        return new URLClassLoader([root.toUri().toURL()] as URL[], getClass().getClassLoader())
+    }
+
+    private static NodeSetImpl mkNodeSet(Map<String, String> nodes) {
+        NodeSetImpl nodeSet = new NodeSetImpl()
+        nodes.each { name, value ->
+            NodeEntryImpl node = new NodeEntryImpl()
+            node.setNodename(name)
+            node.setHostname(name)
+            node.setAttribute('isMuted', value)
+            nodeSet.putNode(node)
+        }
+        return nodeSet
+    }
+}
@@ -0,0 +1,107 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog
+
+import spock.lang.Specification
+
+class CompactHostStoreSpec extends Specification {
+    def "hosts read back from the store"() {
+        given:
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        builder.add(mkDatadogHost(1, ['role:web', 'env:prod']))
+        CompactHostStore store = builder.build(offHeap)
+
+        expect:
+        store.size() == 1
+        store.getId(0) == 1
+        store.getHostName(0) == 'host1.example.com'
+        store.getDatadogTags(0).sort() == ['env:prod', 'role:web']
+        store.isMuted(0)
+        store.getOperatingSystemPlatform(0) == 'linux'
+        store.getOsName(0, false) == 'Centos'
+        store.getOsVersion(0, false) == '22.22.2222'
+        store.getSources(0) == '[agent]'
+
+        where:
+        offHeap << [false, true]
+    }
+
+    def "hosts deduplicated by id"() {
+        given:
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+
+        expect:
+        builder.add(mkDatadogHost(1, ['role:web']))
+        !builder.add(mkDatadogHost(1, ['role:db']))
+        builder.build(false).size() == 1
+    }
+
+    def "tags shared through the dictionary and columns grow past the initial capacity"() {
+        given:
+        StringDictionary dictionary = new StringDictionary()
+        CompactHostStore.Builder builder = CompactHostStore.builder(dictionary)
+        (0..<2500).each { builder.add(mkDatadogHost(it, ['role:web', 'env:prod'])) }
+        CompactHostStore store = builder.build(false)
+
+        expect:
+        store.size() == 2500
+        store.getHostName(2499) == 'host2499.example.com'
+        store.getDatadogTags(2499).sort() == ['env:prod', 'role:web']
+        // Host names have their own column, so only the 2 tags and the shared platform, OS details
+        // and sources are in the dictionary
+        dictionary.size() == 2 + 5
+    }
+
+    def "hosts deduplicated by id past the initial capacity"() {
+        given:
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        List<Long> ids = (0..<3000).collect { it * 4096L }
+
+        expect:
+        ids.every { builder.add(mkDatadogHost(it, [])) }
+        ids.every { !builder.add(mkDatadogHost(it, [])) }
+        builder.build(false).size() == 3000
+    }
+
+    def "missing host names read back as null"() {
+        given:
+        DatadogHost host = mkDatadogHost(1, [])
+        host.setHostName(null)
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        builder.add(host)
+        builder.add(mkDatadogHost(2, []))
+        CompactHostStore store = builder.build(true)
+
+        expect:
+        store.getHostName(0) == null
+        store.getHostName(1) == 'host2.example.com'
+    }
+
+    def "os details missing without both version lists"() {
+        given:
+        DatadogHost host = mkDatadogHost(1, [])
+        host.getMetaData().setWindowsVersionList(null)
+        CompactHostStore.Builder builder = CompactHostStore.builder(new StringDictionary())
+        builder.add(host)
+        CompactHostStore store = builder.build(false)
+
+        expect:
+        store.getOsName(0, false) == null
+        store.getOsVersion(0, false) == null
+    }
+
+    private static DatadogHost mkDatadogHost(id, List<String> tags) {
+        DatadogHost datadogHost = new DatadogHost()
+        datadogHost.setHostName("host${id}.example.com")
+        datadogHost.setId(id)
+        datadogHost.setMuted(true)
+        datadogHost.setSources(['agent'])
+        datadogHost.setTags(Collections.singletonMap('Datadog Agent', tags))
+
+        DatadogMetaData datadogMetaData = new DatadogMetaData()
+        datadogMetaData.setOperatingSystemPlatform('linux')
+        datadogMetaData.setUnixVersionList(['Centos', '22.22.2222', ''])
+        datadogMetaData.setWindowsVersionList(['', '', ''])
+        datadogHost.setMetaData(datadogMetaData)
+
+        return datadogHost
+    }
+}
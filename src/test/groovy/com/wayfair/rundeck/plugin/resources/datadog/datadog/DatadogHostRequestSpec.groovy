@@ -0,0 +1,323 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog
+
+import com.google.api.client.http.GenericUrl
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.http.javanet.NetHttpTransport
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import groovy.json.JsonOutput
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import spock.lang.Specification
+
+class DatadogHostRequestSpec extends Specification {
+    DatadogOrg org = new DatadogOrg('prod', null, 'apiKey', 'appKey', 'env:prod')
+    ExecutorService executor = Executors.newCachedThreadPool()
+    FakeDatadog datadog = new FakeDatadog()
+
+    def setup() {
+        DatadogHostRequest.setHttpTransport(datadog)
+    }
+
+    def cleanup() {
+        executor.shutdownNow()
+        DatadogHostRequest.setHttpTransport(new NetHttpTransport())
+    }
+
+    def "partition tags appended to the filter"() {
+        given:
+        List<String> filters = DatadogHostRequest.partitionFilters(
+                'env:prod', ['availability-zone:us-east-1a', 'availability-zone:us-east-1b'])
+
+        expect:
+        filters == ['env:prod availability-zone:us-east-1a', 'env:prod availability-zone:us-east-1b']
+    }
+
+    def "partition tags used on their own without a filter"() {
+        given:
+        List<String> filters = DatadogHostRequest.partitionFilters(null, ['datacenter:mars'])
+
+        expect:
+        filters == ['datacenter:mars']
+    }
+
+    def "partitioned crawl matches the unpartitioned crawl deduplicated by host id"() {
+        given:
+        // Every tenth host is in both zones
+        (0..<2500).each { id ->
+            datadog.addHost(id, id % 2 == 0 ? ['az:a'] : ['az:b'])
+            if (id % 10 == 0) {
+                datadog.fleet[id].tags_by_source.Datadog << 'az:b'
+            }
+        }
+        PartitionPlan partitions = new PartitionPlan(['az:a', 'az:b'])
+
+        when:
+        Collection<DatadogHost> partitioned =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+        List<String> partitionedRequests = new ArrayList<>(datadog.requests)
+        Collection<DatadogHost> unpartitioned =
+                DatadogHostRequest.getDatadogHosts(org, new PartitionPlan([]), executor, new CrawlStats())
+
+        then:
+        partitioned*.id as Set == unpartitioned*.id as Set
+        partitioned.size() == 2500
+        !partitions.disabled
+        // Only the count of the unpartitioned hosts was requested, not its pages
+        !partitionedRequests.contains('env:prod|0|1000')
+        partitionedRequests.contains('env:prod|0|1')
+        partitionedRequests.contains('env:prod az:a|1000|1000')
+    }
+
+    def "partitioned crawl into a compact host store deduplicated by host id"() {
+        given:
+        (0..<1500).each { id -> datadog.addHost(id, ['az:a', 'az:b']) }
+
+        when:
+        CompactHostStore store = DatadogHostRequest.getCompactDatadogHosts(
+                org, new PartitionPlan(['az:a', 'az:b']), executor, new StringDictionary(), false,
+                new CrawlStats())
+
+        then:
+        store.size() == 1500
+        (0..<store.size()).collect { store.getId(it) } as Set == (0L..<1500L) as Set
+    }
+
+    def "empty partitions are skipped"() {
+        given:
+        (0..<1200).each { id -> datadog.addHost(id, ['az:a']) }
+
+        when:
+        Collection<DatadogHost> hosts = DatadogHostRequest.getDatadogHosts(
+                org, new PartitionPlan(['az:a', 'az:c']), executor, new CrawlStats())
+
+        then:
+        hosts.size() == 1200
+        datadog.requests.findAll { it.startsWith('env:prod az:c|') } == ['env:prod az:c|0|1000']
+        !datadog.requests.contains('env:prod|0|1000')
+    }
+
+    def "hosts without a partition tag disable partitions until every host has one"() {
+        given:
+        (0..<1200).each { id -> datadog.addHost(id, id < 1190 ? ['az:a'] : []) }
+        PartitionPlan partitions = new PartitionPlan(['az:a'])
+
+        when:
+        Collection<DatadogHost> first =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        first*.id as Set == (0L..<1200L) as Set
+        datadog.requests.contains('env:prod|0|1000')
+        partitions.disabled
+
+        when:
+        datadog.requests.clear()
+        Collection<DatadogHost> second =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        second.size() == 1200
+        datadog.requests.every { it.startsWith('env:prod|') }
+        partitions.disabled
+
+        when:
+        // The new hosts get their integration tags
+        (1190..<1200).each { id -> datadog.fleet[id].tags_by_source.Datadog << 'az:a' }
+        datadog.requests.clear()
+        Collection<DatadogHost> third =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        third.size() == 1200
+        datadog.requests.every { it.startsWith('env:prod|') }
+        !partitions.disabled
+
+        when:
+        datadog.requests.clear()
+        Collection<DatadogHost> fourth =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        fourth.size() == 1200
+        datadog.requests.contains('env:prod az:a|0|1000')
+        !datadog.requests.contains('env:prod|0|1000')
+    }
+
+    def "a shortfall from hosts added during the crawl keeps partitions"() {
+        given:
+        (0..<100).each { id -> datadog.addHost(id, ['az:a']) }
+        // The unpartitioned count sees a host the partitions didn't
+        datadog.countSkew = 1
+        PartitionPlan partitions = new PartitionPlan(['az:a'])
+
+        when:
+        Collection<DatadogHost> hosts =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        hosts.size() == 100
+        datadog.requests.contains('env:prod|0|1000')
+        !partitions.disabled
+    }
+
+    def "hosts seen twice within a partition keep partitions"() {
+        given:
+        (0..<1500).each { id -> datadog.addHost(id, ['az:a']) }
+        // Hosts added ahead of the offset push the last hosts of the first page onto the second
+        datadog.pageShift = 5
+        PartitionPlan partitions = new PartitionPlan(['az:a'])
+
+        when:
+        Collection<DatadogHost> hosts =
+                DatadogHostRequest.getDatadogHosts(org, partitions, executor, new CrawlStats())
+
+        then:
+        hosts*.id as Set == (0L..<1500L) as Set
+        !datadog.requests.contains('env:prod|0|1000')
+        !partitions.disabled
+    }
+
+    def "rate limited requests counted and retried"() {
+        given:
+        (0..<10).each { id -> datadog.addHost(id, ['az:a']) }
+        datadog.rateLimitedResponses[0] = 2
+        CrawlStats stats = new CrawlStats()
+
+        when:
+        Collection<DatadogHost> hosts =
+                DatadogHostRequest.getDatadogHosts(org, new PartitionPlan([]), executor, stats)
+
+        then:
+        hosts*.id as Set == (0L..<10L) as Set
+        stats.getRateLimited() == 2
+        datadog.requests == ['env:prod|0|1000'] * 3
+    }
+
+    def "orgs sharing a single request thread time requests from when they run"() {
+        given:
+        (0..<3000).each { id -> datadog.addHost(id, ['az:a']) }
+        (3000..<15000).each { id -> datadog.addHost(id, ['az:b']) }
+        datadog.latencyMillis = 20
+        DatadogOrg orgA = new DatadogOrg('a', null, 'apiKey', 'appKey', 'env:prod az:a')
+        DatadogOrg orgB = new DatadogOrg('b', null, 'apiKey', 'appKey', 'env:prod az:b')
+        ExecutorService singleThread = Executors.newFixedThreadPool(1)
+        ExecutorService orgExecutor = Executors.newFixedThreadPool(2)
+
+        when:
+        // The pages of org a queue behind the pages of org b
+        Future<Collection<DatadogHost>> hostsB = orgExecutor.submit({
+            DatadogHostRequest.getDatadogHosts(orgB, new PartitionPlan([]), singleThread, new CrawlStats())
+        } as Callable)
+        Future<Collection<DatadogHost>> hostsA = orgExecutor.submit({
+            DatadogHostRequest.getDatadogHosts(orgA, new PartitionPlan([]), singleThread, new CrawlStats())
+        } as Callable)
+
+        then:
+        hostsA.get()*.id as Set == (0L..<3000L) as Set
+        hostsB.get()*.id as Set == (3000L..<15000L) as Set
+        datadog.requests.size() == 17
+        // Every attempt gets its own connect and read timeout
+        datadog.timeouts.size() == 17
+        datadog.timeouts.every { it == [10000, 10000] }
+
+        cleanup:
+        singleThread.shutdownNow()
+        orgExecutor.shutdownNow()
+    }
+
+    def "rate limited later pages counted and retried"() {
+        given:
+        (0..<2500).each { id -> datadog.addHost(id, ['az:a']) }
+        datadog.rateLimitedResponses[2000] = 3
+        CrawlStats stats = new CrawlStats()
+
+        when:
+        Collection<DatadogHost> hosts =
+                DatadogHostRequest.getDatadogHosts(org, new PartitionPlan([]), executor, stats)
+
+        then:
+        hosts*.id as Set == (0L..<2500L) as Set
+        stats.getRateLimited() == 3
+        datadog.requests.count('env:prod|2000|1000') == 4
+        datadog.requests.count('env:prod|1000|1000') == 1
+    }
+
+    /** A fake Datadog hosts endpoint serving a fleet of hosts that match a filter by tags. */
+    static class FakeDatadog extends MockHttpTransport {
+        List<Map> fleet = []
+        List<String> requests = Collections.synchronizedList([])
+        int countSkew
+        int pageShift
+        // Rate limited responses to send before serving each start offset
+        Map<Integer, Integer> rateLimitedResponses = [:]
+        long latencyMillis
+        List<List<Integer>> timeouts = Collections.synchronizedList([])
+
+        void addHost(long id, List<String> tags) {
+            fleet << [
+                    id            : id,
+                    host_name     : "host${id}.example.com".toString(),
+                    tags_by_source: [Datadog: ['env:prod'] + tags],
+                    is_muted      : false,
+                    meta          : [platform: 'linux'],
+                    sources       : ['agent']
+            ]
+        }
+
+        @Override
+        LowLevelHttpRequest buildRequest(String method, String url) {
+            MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url) {
+                @Override
+                void setTimeout(int connectTimeout, int readTimeout) {
+                    timeouts << [connectTimeout, readTimeout]
+                }
+
+                @Override
+                LowLevelHttpResponse execute() {
+                    setResponse(respond(new GenericUrl(url)))
+                    return super.execute()
+                }
+            }
+            return request
+        }
+
+        MockLowLevelHttpResponse respond(GenericUrl url) {
+            String filter = url.getFirst('filter')
+            int start = (url.getFirst('start') as String).toInteger()
+            int count = (url.getFirst('count') as String).toInteger()
+            requests << "${filter}|${start}|${count}".toString()
+
+            if (latencyMillis > 0) {
+                sleep(latencyMillis)
+            }
+
+            synchronized (this) {
+                if (rateLimitedResponses.getOrDefault(start, 0) > 0) {
+                    rateLimitedResponses[start]--
+                    return new MockLowLevelHttpResponse().setStatusCode(429)
+                }
+            }
+
+            List<String> filterTags = filter.split(' ') as List
+            List<Map> matching = fleet.findAll { host ->
+                host.tags_by_source.Datadog.containsAll(filterTags)
+            }
+            int from = start > 0 ? start - pageShift : start
+            List<Map> page = from < matching.size() ?
+                    matching.subList(from, Math.min(from + count, matching.size())) : []
+
+            new MockLowLevelHttpResponse()
+                    .setStatusCode(200)
+                    .setContentType('application/json')
+                    .setContent(JsonOutput.toJson([
+                            total_matching: matching.size() + (count == 1 ? countSkew : 0),
+                            host_list     : page
+                    ]))
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.wayfair.rundeck.plugin.resources.datadog.datadog
+
+import spock.lang.Specification
+
+class DatadogOrgSpec extends Specification {
+    def "datadog org entry parsed"() {
+        given:
+        DatadogOrg org = DatadogOrg.parse('eu | datadoghq.eu | api | app | env:prod datacenter:blah')
+
+        expect:
+        org.getName() == 'eu'
+        org.getHostsUrl() == 'https://api.datadoghq.eu/api/v1/hosts'
+        org.getApiKey() == 'api'
+        org.getAppKey() == 'app'
+        org.getFilter() == 'env:prod datacenter:blah'
+    }
+
+    def "datadog org entry without a filter parsed"() {
+        given:
+        DatadogOrg org = DatadogOrg.parse('us|datadoghq.com|api|app')
+
+        expect:
+        org.getName() == 'us'
+        org.getFilter() == null
+    }
+
+    def "datadog org without a site uses the default site"() {
+        given:
+        DatadogOrg org = new DatadogOrg(null, '', 'api', 'app', null)
+
+        expect:
+        org.getName() == DatadogOrg.DEFAULT_SITE
+        org.getHostsUrl() == 'https://api.datadoghq.com/api/v1/hosts'
+    }
+
+    def "datadog org entry with too few fields rejected"() {
+        when:
+        DatadogOrg.parse('eu|datadoghq.eu|api')
+
+        then:
+        IllegalArgumentException ex = thrown(IllegalArgumentException)
+        ex.getMessage() == 'Expected `name|site|apiKey|appKey|filter` but got 3 fields'
+    }
+
+    def "datadog org entry without an api key rejected"() {
+        when:
+        DatadogOrg.parse('eu|datadoghq.eu| |app|env:prod')
+
+        then:
+        IllegalArgumentException ex = thrown(IllegalArgumentException)
+        ex.getMessage() == 'Missing Datadog key for organization: eu'
+    }
+
+    def "datadog org entry without an app key rejected"() {
+        when:
+        DatadogOrg.parse('eu|datadoghq.eu|api||env:prod')
+
+        then:
+        IllegalArgumentException ex = thrown(IllegalArgumentException)
+        ex.getMessage() == 'Missing Datadog key for organization: eu'
+    }
+}